@@ -0,0 +1,160 @@
+package hudson.plugins.cobertura;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of threads that draws coverage graphs, so that a burst of page loads queues up here instead of
+ * tying up the threads of the web container.
+ *
+ * <p>
+ * The queue is bounded: when it is full, {@link #submit(Callable)} refuses the work and the caller is expected to
+ * serve something it already has. The time from queueing to completion of the last {@value #WINDOW} renderings is
+ * kept for {@link ChartRendererMXBean}.
+ */
+final class ChartRenderer implements ChartRendererMXBean {
+
+    static final int WINDOW = 1024;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int queueCapacity;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final long[] latencies = new long[WINDOW];
+
+    private long count;
+
+    /**
+     * Constructor.
+     *
+     * @param name          name of the threads
+     * @param threads       the number of threads, which are only kept while there is work
+     * @param queueCapacity the number of graphs that may wait for a thread
+     */
+    ChartRenderer(String name, int threads, int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(this.queueCapacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a rendering.
+     *
+     * @param task the rendering
+     * @param <T>  the type of what gets rendered
+     * @return the pending result, or {@code null} if the queue is full
+     */
+    <T> Future<T> submit(final Callable<T> task) {
+        final long queued = System.nanoTime();
+        try {
+            return executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Records that a caller stopped waiting for a rendering.
+     */
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * Stops the threads once the queued work is done.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /*package*/ synchronized void record(long millis) {
+        latencies[(int) (count++ % WINDOW)] = millis;
+    }
+
+    /**
+     * Gets a percentile of the recent latencies.
+     *
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, or 0 if nothing has been rendered yet
+     */
+    /*package*/ long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(latencies, (int) Math.min(count, WINDOW));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public synchronized long getRenderCount() {
+        return count;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getLatency50thPercentile() {
+        return getPercentile(50);
+    }
+
+    public long getLatency90thPercentile() {
+        return getPercentile(90);
+    }
+
+    public long getLatency99thPercentile() {
+        return getPercentile(99);
+    }
+
+    public long getMaxLatency() {
+        return getPercentile(100);
+    }
+}
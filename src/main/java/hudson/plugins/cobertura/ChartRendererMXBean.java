@@ -0,0 +1,34 @@
+package hudson.plugins.cobertura;
+
+/**
+ * Statistics of the pool that draws coverage graphs, exposed through JMX as
+ * {@code hudson.plugins.cobertura:type=ChartRenderer}.
+ *
+ * <p>
+ * Latencies are measured from the moment a graph is queued until it is drawn, over the most recent renderings,
+ * in milliseconds.
+ */
+public interface ChartRendererMXBean {
+
+    int getThreads();
+
+    int getQueueCapacity();
+
+    int getQueueSize();
+
+    int getActiveCount();
+
+    long getRenderCount();
+
+    long getRejectedCount();
+
+    long getTimeoutCount();
+
+    long getLatency50thPercentile();
+
+    long getLatency90thPercentile();
+
+    long getLatency99thPercentile();
+
+    long getMaxLatency();
+}
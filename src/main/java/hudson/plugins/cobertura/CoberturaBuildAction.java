@@ -9,22 +9,24 @@ import hudson.model.Run;
 import hudson.plugins.cobertura.targets.CoverageMetric;
 import hudson.plugins.cobertura.targets.CoverageTarget;
 import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoveragePaintStore;
+import hudson.plugins.cobertura.targets.CoverageSummary;
 import hudson.util.DescribableList;
-import hudson.util.Graph;
 import jenkins.model.RunAction2;
 import jenkins.tasks.SimpleBuildStep;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.jfree.chart.JFreeChart;
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.StaplerProxy;
 import org.kohsuke.stapler.StaplerRequest;
@@ -52,7 +54,8 @@ public class CoberturaBuildAction implements HealthReportingAction, StaplerProxy
      */
     private Map<CoverageMetric, Ratio> result;
     private HealthReport health = null;
-    private transient WeakReference<CoverageResult> report;
+    private transient volatile WeakReference<CoverageResult> report;
+    private transient SoftReference<CoverageSummary> summary;
     private final boolean onlyStable;
     
     private String failMessage = null;
@@ -213,7 +216,7 @@ public class CoberturaBuildAction implements HealthReportingAction, StaplerProxy
         }
     }
 
-    private boolean includeOnlyStable() {
+    /*package*/ boolean includeOnlyStable() {
         return onlyStable;
     }
 
@@ -248,10 +251,23 @@ public class CoberturaBuildAction implements HealthReportingAction, StaplerProxy
         if (report != null) {
             CoverageResult r = report.get();
             if (r != null) {
+                CoverageResultCache.put(this, r);
                 return r;
             }
         }
 
+        if (CoverageResultCache.isLoadRefused()) {
+            CoverageSummary s = getSummary();
+            if (s != null) {
+                CoverageResult r = s.toResult();
+                if (r != null) {
+                    r.setOwner(owner);
+                    return r;
+                }
+            }
+            logger.log(Level.FINE, "Heap is above the hard watermark but {0} has no summary, loading its report", owner);
+        }
+
         CoverageResult r = null;
         for (File reportFile : CoberturaPublisher.getCoberturaReports(owner)) {
             try {
@@ -262,12 +278,65 @@ public class CoberturaBuildAction implements HealthReportingAction, StaplerProxy
         }
         if (r != null) {
             r.setOwner(owner);
+            File paintFile = new File(owner.getRootDir(), CoveragePaintStore.FILE_NAME);
+            if (CoveragePaintStore.ENABLED && paintFile.exists()) {
+                try {
+                    CoveragePaintStore.attach(r, paintFile);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to map " + paintFile + ", keeping coverage paint on-heap", e);
+                }
+            }
             report = new WeakReference<CoverageResult>(r);
+            CoverageResultCache.put(this, r);
+            File summaryFile = new File(owner.getRootDir(), CoverageSummary.FILE_NAME);
+            if (!summaryFile.exists()) {
+                // builds published before summaries existed get one the first time their report is loaded
+                try {
+                    CoverageSummary.write(r, summaryFile);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to write " + summaryFile, e);
+                }
+            }
             return r;
         } else {
             return null;
         }
     }
+
+    /**
+     * Lets go of the loaded report, so that it is reloaded the next time it is needed.
+     * Called by {@link CoverageResultCache} on eviction; deliberately not synchronized, as the cache may call it
+     * while another action's {@link #getResult()} holds that action's lock.
+     */
+    void dropResult() {
+        report = null;
+    }
+
+    /**
+     * Obtains the {@link CoverageSummary} of this build, which is much cheaper to load than {@link #getResult()}.
+     *
+     * @return the summary, or {@code null} if this build has none.
+     */
+    public synchronized CoverageSummary getSummary() {
+        if (summary != null) {
+            CoverageSummary s = summary.get();
+            if (s != null) {
+                return s;
+            }
+        }
+        File summaryFile = new File(owner.getRootDir(), CoverageSummary.FILE_NAME);
+        if (!summaryFile.exists()) {
+            return null;
+        }
+        try {
+            CoverageSummary s = CoverageSummary.read(summaryFile);
+            summary = new SoftReference<CoverageSummary>(s);
+            return s;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load " + summaryFile, e);
+            return null;
+        }
+    }
     private static final Logger logger = Logger.getLogger(CoberturaBuildAction.class.getName());
 
     public static CoberturaBuildAction load(CoverageResult result, CoverageTarget healthyTarget,
@@ -285,14 +354,26 @@ public class CoberturaBuildAction implements HealthReportingAction, StaplerProxy
      * @throws IOException forwarded from StaplerResponse.sendRedirect2
      */
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        new Graph(owner.getTimestamp(), 500, 200) {
+        new CoverageGraph(owner, "project", 500, 200) {
             @Override
-            protected JFreeChart createGraph() {
-                return new CoverageChart(CoberturaBuildAction.this).createChart();
+            protected CoverageChart createCoverageChart() {
+                return createTrendChart();
             }
         }.doPng(req, rsp);
     }
 
+    /**
+     * Draws the trend up to this build from the job's {@link CoverageTrend}, and by walking the previous builds
+     * only if the trend does not know this build yet.
+     */
+    /*package*/ CoverageChart createTrendChart() {
+        List<CoverageTrend.Record> records = CoverageTrend.read(owner, maxNumberOfBuilds);
+        if (records != null && records.size() >= 2) {
+            return new CoverageChart(records, zoomCoverageChart);
+        }
+        return new CoverageChart(this);
+    }
+
     public boolean getZoomCoverageChart() {
         return zoomCoverageChart;
     }
@@ -3,7 +3,6 @@ package hudson.plugins.cobertura;
 import hudson.model.Actionable;
 import hudson.model.Job;
 import hudson.model.ProminentProjectAction;
-import hudson.model.Result;
 import hudson.model.Run;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -17,6 +16,12 @@ import java.io.IOException;
  */
 public class CoberturaProjectAction extends Actionable implements ProminentProjectAction {
 
+    /**
+     * Whether the floating box draws the trend in the browser from {@link #getTrend()} instead of showing
+     * the server-side rendered graph.
+     */
+    public static boolean CLIENT_SIDE_TREND = Boolean.getBoolean(CoberturaProjectAction.class.getName() + ".clientSideTrend");
+
     private transient Run<?, ?> run;
     private boolean onlyStable;
 
@@ -56,37 +61,45 @@ public class CoberturaProjectAction extends Actionable implements ProminentProje
      * @return Value for property 'lastResult'.
      */
     public CoberturaBuildAction getLastResult() {
-        for (Run<?, ?> b = getLastBuildToBeConsidered(); b != null; b = BuildUtils.getPreviousNotFailedCompletedBuild(b)) {
-            if (b.getResult() == Result.FAILURE || (b.getResult() != Result.SUCCESS && onlyStable))
-                continue;
-            CoberturaBuildAction r = b.getAction(CoberturaBuildAction.class);
-            if (r != null)
-                return r;
-        }
-        return null;
+        Run<?, ?> b = getLastResultRun();
+        return b == null ? null : b.getAction(CoberturaBuildAction.class);
     }
-    private Run<?, ?> getLastBuildToBeConsidered(){
-        return onlyStable ? run.getParent().getLastStableBuild() : run.getParent().getLastSuccessfulBuild();
+
+    /**
+     * Gets the build {@link #getLastResult()} belongs to, as remembered by {@link LastResultCache}.
+     */
+    private Run<?, ?> getLastResultRun() {
+        return LastResultCache.getLastResultBuild(run.getParent(), onlyStable);
     }
+
      /**
      * Getter for property 'lastResult'.
      *
      * @return Value for property 'lastResult'.
      */
     public Integer getLastResultBuild() {
-        for (Run<?, ?> b = getLastBuildToBeConsidered(); b != null; b = BuildUtils.getPreviousNotFailedCompletedBuild(b)) {
-            if (b.getResult() == Result.FAILURE || (b.getResult() != Result.SUCCESS && onlyStable))
-                continue;
-            CoberturaBuildAction r = b.getAction(CoberturaBuildAction.class);
-            if (r != null)
-                return b.getNumber();
-        }
-        return null;
+        Run<?, ?> b = getLastResultRun();
+        return b == null ? null : b.getNumber();
+    }
+
+    /**
+     * Gets the project level trend as JSON, see {@link CoverageTrendApi}.
+     *
+     * @return the endpoint, or {@code null} if there is no coverage yet
+     */
+    public CoverageTrendApi getTrend() {
+        Run<?, ?> b = getLastResultRun();
+        return b == null ? null : new CoverageTrendApi(b, null);
+    }
+
+    public boolean isClientSideTrend() {
+        return CLIENT_SIDE_TREND;
     }
 
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        if (getLastResult() != null)
-            getLastResult().doGraph(req, rsp);
+        Run<?, ?> b = getLastResultRun();
+        if (b != null)
+            b.getAction(CoberturaBuildAction.class).doGraph(req, rsp);
     }
 
     public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
@@ -10,11 +10,14 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.cobertura.adapter.CoberturaReportAdapter;
+import hudson.plugins.cobertura.renderers.PaintedSourceStore;
 import hudson.plugins.cobertura.renderers.SourceCodePainter;
 import hudson.plugins.cobertura.renderers.SourceEncoding;
 import hudson.plugins.cobertura.targets.CoverageMetric;
 import hudson.plugins.cobertura.targets.CoverageTarget;
 import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoveragePaintStore;
+import hudson.plugins.cobertura.targets.CoverageSummary;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -103,6 +106,14 @@ public class CoberturaPublisher extends Recorder implements SimpleBuildStep {
 
     private boolean enableNewApi;
 
+    private boolean lazySourceRendering;
+
+    private String sourceExcludes;
+
+    private int maxSourceFileSize;
+
+    private int maxSourcesSize;
+
     @Deprecated
     public CoberturaPublisher(String coberturaReportFile, boolean onlyStable, boolean failUnhealthy, boolean failUnstable,
              boolean autoUpdateHealth, boolean autoUpdateStability, boolean zoomCoverageChart, boolean failNoReports, SourceEncoding sourceEncoding,
@@ -600,6 +611,23 @@ public class CoberturaPublisher extends Recorder implements SimpleBuildStep {
         if (result != null) {
             logMessage(listener, "Cobertura coverage report found.");
             result.setOwner(build);
+            try {
+                CoverageSummary.write(result, new File(buildCoberturaDir, CoverageSummary.FILE_NAME));
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Unable to write coverage summary"));
+            }
+            try {
+                CoverageNodeTrend.append(build, result);
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Unable to update the coverage node index"));
+            }
+            if (CoveragePaintStore.ENABLED) {
+                try {
+                    CoveragePaintStore.write(result, new File(buildCoberturaDir, CoveragePaintStore.FILE_NAME));
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Unable to write coverage paint"));
+                }
+            }
             final FilePath paintedSourcesPath = new FilePath(new File(build.getParent().getRootDir(), "cobertura"));
             paintedSourcesPath.mkdirs();
 
@@ -615,8 +643,17 @@ public class CoberturaPublisher extends Recorder implements SimpleBuildStep {
 
             SourceCodePainter painter = new SourceCodePainter(paintedSourcesPath, sourcePaths,
                     result.getPaintedSources(), listener, getSourceEncoding());
+            painter.setRawSource(isLazySourceRendering());
+            painter.setExcludes(getSourceExcludes());
+            painter.setSizeLimits(getMaxSourceFileSize() * 1024L, getMaxSourcesSize() * 1024L);
 
-            workspace.act(painter);
+            if (Boolean.TRUE.equals(painter.paint(workspace))) {
+                try {
+                    PaintedSourceStore.record(build, new File(paintedSourcesPath.getRemote()), listener);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Unable to store the painted sources of this build"));
+                }
+            }
 
             final CoberturaBuildAction action = CoberturaBuildAction.load(result, healthyTarget,
                     unhealthyTarget, getOnlyStable(), getFailUnhealthy(), getFailUnstable(), getAutoUpdateHealth(), getAutoUpdateStability(),
@@ -832,6 +869,55 @@ public class CoberturaPublisher extends Recorder implements SimpleBuildStep {
         this.enableNewApi = enableNewApi;
     }
 
+    /**
+     * Whether sources are kept raw and painted when they are viewed, rather than painted at build time.
+     */
+    public boolean isLazySourceRendering() {
+        return lazySourceRendering;
+    }
+
+    @DataBoundSetter
+    public void setLazySourceRendering(boolean lazySourceRendering) {
+        this.lazySourceRendering = lazySourceRendering;
+    }
+
+    /**
+     * Gets the comma separated Ant patterns of the sources that are not painted.
+     */
+    public String getSourceExcludes() {
+        return sourceExcludes;
+    }
+
+    @DataBoundSetter
+    public void setSourceExcludes(String sourceExcludes) {
+        this.sourceExcludes = Util.fixEmptyAndTrim(sourceExcludes);
+    }
+
+    /**
+     * Gets the size in kilobytes above which a source is only summarized rather than painted; 0 for no limit.
+     */
+    public int getMaxSourceFileSize() {
+        return maxSourceFileSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxSourceFileSize(int maxSourceFileSize) {
+        this.maxSourceFileSize = Math.max(0, maxSourceFileSize);
+    }
+
+    /**
+     * Gets the size in kilobytes of all the sources painted for a build, above which the remaining ones are only
+     * summarized; 0 for no limit.
+     */
+    public int getMaxSourcesSize() {
+        return maxSourcesSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxSourcesSize(int maxSourcesSize) {
+        this.maxSourcesSize = Math.max(0, maxSourcesSize);
+    }
+
     public static class ParseReportCallable extends MasterToSlaveFileCallable<FilePath[]> {
 
         private static final long serialVersionUID = 1L;
@@ -8,6 +8,12 @@ import hudson.util.ShiftedCategoryAxis;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import org.jfree.chart.ChartFactory;
@@ -20,12 +26,18 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.LineAndShapeRenderer;
 import org.jfree.chart.title.LegendTitle;
 import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.ui.RectangleEdge;
 import org.jfree.ui.RectangleInsets;
 import org.jfree.util.Log;
 
 public class CoverageChart
 {
+	/**
+	 * Horizontal space, in pixels, each plotted build gets at least; see {@link #createChart(int)}.
+	 */
+	public static int PIXELS_PER_POINT = Integer.getInteger( CoverageChart.class.getName() + ".pixelsPerPoint", 4 );
+
 	private CategoryDataset	dataset;
 	private int					lowerBound;
 	private int					upperBound;
@@ -67,8 +79,96 @@ public class CoverageChart
 			n++;
 			if( maximumBuilds != 0 && n >= maximumBuilds ) break;
 		}
-		int range = max - min;
 		this.dataset = dsb.build();
+		setBounds( zoomCoverageChart, min, max );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param records points read from the {@link CoverageTrend}, newest first
+	 * @param zoomCoverageChart true to zoom coverage chart
+	 */
+	public CoverageChart( List<CoverageTrend.Record> records, boolean zoomCoverageChart )
+	{
+		if( records.size() < 2 ) throw new NullPointerException( "Need at least two result to draw a chart" );
+		// one pass over the counters, oldest build first; percentages are rounded for the bounds only once
+		CoverageMetric[] metrics = CoverageMetric.values();
+		int columns = records.size();
+		float[] values = new float[metrics.length * columns];
+		BuildNumberLabel[] labels = new BuildNumberLabel[columns];
+		float min = 100;
+		float max = 0;
+		for( int col = 0; col < columns; col++ )
+		{
+			CoverageTrend.Record record = records.get( columns - 1 - col );
+			labels[col] = new BuildNumberLabel( record.number );
+			for( CoverageMetric metric: metrics )
+			{
+				float denominator = record.getDenominator( metric );
+				float value = Float.isNaN( denominator ) ? Float.NaN
+						: Ratio.percentageFloat( record.getNumerator( metric ), denominator );
+				values[metric.ordinal() * columns + col] = value;
+				if( value < min ) min = value;
+				if( value > max ) max = value;
+			}
+		}
+
+		// series in the order DataSetBuilder sorts them in, so that they keep their colors
+		Arrays.sort( metrics, new Comparator<CoverageMetric>()
+		{
+			public int compare( CoverageMetric a, CoverageMetric b )
+			{
+				return a.getName().compareTo( b.getName() );
+			}
+		} );
+		List<CoverageMetric> present = new ArrayList<CoverageMetric>();
+		for( CoverageMetric metric: metrics )
+		{
+			int base = metric.ordinal() * columns;
+			for( int col = 0; col < columns; col++ )
+			{
+				if( !Float.isNaN( values[base + col] ) )
+				{
+					present.add( metric );
+					break;
+				}
+			}
+		}
+		DefaultCategoryDataset data = new DefaultCategoryDataset();
+		if( !present.isEmpty() )
+		{
+			// the dataset orders its keys as it first sees them: all of them go in first, builds oldest first,
+			// so that a metric missing from the older builds does not move them behind the newer ones
+			String first = present.get( 0 ).getName();
+			for( int col = 0; col < columns; col++ )
+			{
+				data.addValue( null, first, labels[col] );
+			}
+			for( CoverageMetric metric: present )
+			{
+				data.addValue( null, metric.getName(), labels[0] );
+			}
+		}
+		for( CoverageMetric metric: present )
+		{
+			String name = metric.getName();
+			int base = metric.ordinal() * columns;
+			for( int col = 0; col < columns; col++ )
+			{
+				if( !Float.isNaN( values[base + col] ) )
+				{
+					data.addValue( Float.valueOf( values[base + col] ), name, labels[col] );
+				}
+			}
+		}
+		this.dataset = data;
+		setBounds( zoomCoverageChart, Ratio.percentage( min ), Ratio.percentage( max ) );
+	}
+
+	private void setBounds( boolean zoomCoverageChart, int min, int max )
+	{
+		int range = max - min;
 		if( zoomCoverageChart )
 		{
 			this.lowerBound = min - 1;
@@ -81,6 +181,43 @@ public class CoverageChart
 		}
 	}
 
+	/**
+	 * Category label for builds that are known by number only, so that they need not be loaded.
+	 * Renders like {@link ChartUtil.NumberOnlyBuildLabel} does for builds without a custom display name.
+	 */
+	static final class BuildNumberLabel implements Comparable<BuildNumberLabel>
+	{
+		private final int number;
+
+		BuildNumberLabel( int number )
+		{
+			this.number = number;
+		}
+
+		public int compareTo( BuildNumberLabel that )
+		{
+			return this.number - that.number;
+		}
+
+		@Override
+		public boolean equals( Object o )
+		{
+			return o instanceof BuildNumberLabel && ((BuildNumberLabel) o).number == number;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return number;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "#" + number;
+		}
+	}
+
 	protected static boolean isZoomCoverageChart( Chartable chartable )
 	{
 		if( chartable == null ) return false;
@@ -113,12 +250,53 @@ public class CoverageChart
 	}
 
 	public JFreeChart createChart()
+	{
+		return createChart( dataset );
+	}
+
+	/**
+	 * Creates the chart for the given width, plotting at most one build per
+	 * {@link #PIXELS_PER_POINT} pixels. Longer histories are downsampled.
+	 *
+	 * @param width width of the image the chart is drawn into
+	 * @return the chart
+	 */
+	public JFreeChart createChart( int width )
+	{
+		return createChart( getDataset( width ) );
+	}
+
+	/**
+	 * Writes the chart as SVG, without going through JFreeChart or AWT.
+	 * Long histories are downsampled like in {@link #createChart(int)}.
+	 *
+	 * @param out where to write to
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @throws IOException if writing fails
+	 */
+	public void writeSvg( Writer out, int width, int height ) throws IOException
+	{
+		SvgChartWriter.write( getDataset( width ), lowerBound, upperBound, width, height, out );
+	}
+
+	private CategoryDataset getDataset( int width )
+	{
+		int threshold = width / Math.max( 1, PIXELS_PER_POINT );
+		if( threshold >= 3 && dataset.getColumnCount() > threshold )
+		{
+			return Downsampler.downsample( dataset, threshold );
+		}
+		return dataset;
+	}
+
+	private JFreeChart createChart( CategoryDataset data )
 	{
 
 		final JFreeChart chart = ChartFactory.createLineChart( null, // chart title
 				null, // unused
 				"%", // range axis label
-				dataset, // data
+				data, // data
 				PlotOrientation.VERTICAL, // orientation
 				true, // include legend
 				true, // tooltips
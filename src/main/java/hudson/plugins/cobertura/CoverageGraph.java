@@ -0,0 +1,457 @@
+package hudson.plugins.cobertura;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.Graph;
+
+import java.awt.HeadlessException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * {@link Graph} of a coverage trend that keeps the rendered PNG around and tags it with a strong ETag.
+ * With {@code format=svg}, or when AWT does not work, the graph is streamed as SVG instead, which is cheap enough
+ * to be written straight to the response every time it is not in the browser cache.
+ *
+ * <p>
+ * A trend graph only depends on the build it ends at, the element it shows, its size, the zoom and maximum
+ * number of builds settings of that build, and on which earlier builds still exist. These make up the cache key,
+ * together with a per-job generation that is bumped whenever a build of the job completes or gets deleted.
+ * Requests that present the ETag of the current key get a 304 without the chart being drawn or the build
+ * history being looked at. Graphs are drawn by a small bounded pool of threads rather than by the threads that
+ * serve requests.
+ */
+public abstract class CoverageGraph extends Graph {
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageGraph.class.getName());
+
+    /**
+     * Maximum number of bytes of rendered images kept in memory.
+     */
+    public static long CACHE_SIZE = Long.getLong(CoverageGraph.class.getName() + ".cacheSize", 8L * 1024 * 1024);
+
+    /**
+     * Number of threads drawing graphs.
+     */
+    public static int RENDER_THREADS = Integer.getInteger(CoverageGraph.class.getName() + ".renderThreads", 2);
+
+    /**
+     * Number of graphs that may wait for a thread before requests get an earlier rendering or a placeholder.
+     */
+    public static int RENDER_QUEUE = Integer.getInteger(CoverageGraph.class.getName() + ".renderQueue", 16);
+
+    /**
+     * Milliseconds a request waits for its graph to be drawn.
+     */
+    public static long RENDER_TIMEOUT = Long.getLong(CoverageGraph.class.getName() + ".renderTimeout", 10000L);
+
+    /**
+     * Number of renderings of the same graph, in different sizes or formats, kept in the cache.
+     */
+    public static int CACHED_SIZES = Integer.getInteger(CoverageGraph.class.getName() + ".cachedSizes", 4);
+
+    /**
+     * Smallest and largest width or height a request may ask for.
+     */
+    private static final int MIN_SIZE = 100;
+
+    private static final int MAX_SIZE = 2000;
+
+    private static final String SVG = "image/svg+xml;charset=UTF-8";
+
+    private static final Map<String, Rendering> CACHE = new LinkedHashMap<String, Rendering>(16, 0.75f, true);
+
+    private static final Map<String, Future<Rendering>> PENDING = new HashMap<String, Future<Rendering>>();
+
+    private static ChartRenderer renderer;
+
+    private static long cachedBytes;
+
+    /**
+     * Set once rendering through AWT failed, after which graphs are served as SVG.
+     */
+    private static volatile boolean awtUnavailable;
+
+    /**
+     * Generations start over when Jenkins restarts, so ETags handed out by an earlier instance must not match.
+     */
+    private static final long EPOCH = System.currentTimeMillis();
+
+    private static final Map<Job<?, ?>, Integer> GENERATIONS =
+            Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, Integer>());
+
+    private final Run<?, ?> owner;
+
+    private final String node;
+
+    private final int defaultW;
+
+    private final int defaultH;
+
+    /**
+     * Constructor.
+     *
+     * @param owner    the build the trend ends at
+     * @param node     identifies what the graph shows within that build
+     * @param defaultW the width used when the request does not specify one
+     * @param defaultH the height used when the request does not specify one
+     */
+    protected CoverageGraph(Run<?, ?> owner, String node, int defaultW, int defaultH) {
+        super(owner.getTimestamp(), defaultW, defaultH);
+        this.owner = owner;
+        this.node = node;
+        this.defaultW = defaultW;
+        this.defaultH = defaultH;
+    }
+
+    private static int getGeneration(Job<?, ?> job) {
+        Integer generation = GENERATIONS.get(job);
+        return generation == null ? 0 : generation;
+    }
+
+    private static void bumpGeneration(Job<?, ?> job) {
+        synchronized (GENERATIONS) {
+            GENERATIONS.put(job, getGeneration(job) + 1);
+        }
+    }
+
+    /**
+     * Parses a width or height, kept within {@link #MIN_SIZE} and {@link #MAX_SIZE} so that a request cannot have
+     * a huge image drawn.
+     */
+    /*package*/ static int parseSize(String value, int defaultValue) {
+        int size = defaultValue;
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                size = defaultValue;
+            }
+        }
+        return Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+
+    /**
+     * Gets what identifies the graph whatever its size.
+     */
+    private String getNodeKey() {
+        return owner.getParent().getFullName() + '#' + owner.getNumber() + '/' + node + '/';
+    }
+
+    /**
+     * Gets what identifies the graph the request asks for, regardless of the history of the job.
+     */
+    private String getGraphKey(int width, int height) {
+        CoberturaBuildAction action = owner.getAction(CoberturaBuildAction.class);
+        boolean zoom = action != null && action.getZoomCoverageChart();
+        int maxBuilds = action == null ? 0 : action.getMaxNumberOfBuilds();
+        return getNodeKey() + width + 'x' + height + (zoom ? "/zoom/" : "/full/") + maxBuilds + '/';
+    }
+
+    /**
+     * Gets the cache key of the graph the request asks for.
+     */
+    /*package*/ String getKey(int width, int height) {
+        return getGraphKey(width, height) + EPOCH + '.' + getGeneration(owner.getParent());
+    }
+
+    private static String getETag(String key) {
+        return '"' + Util.getDigestOf(key) + '"';
+    }
+
+    /**
+     * Renders the graph as PNG, or as SVG if the request asks for {@code format=svg} or AWT does not work on this
+     * controller. Answers 304 if the client already has the current rendering. SVG is written to the response as
+     * it is generated, without being kept.
+     *
+     * <p>
+     * Graphs are drawn by a {@link ChartRenderer} rather than on the request thread. If its queue is full, or the
+     * graph is not ready within {@link #RENDER_TIMEOUT}, an earlier rendering of the same graph is served if one is
+     * still cached, and a placeholder otherwise; neither is tagged, so that the browser asks again next time.
+     */
+    @Override
+    public void doPng(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int width = parseSize(req.getParameter("width"), defaultW);
+        int height = parseSize(req.getParameter("height"), defaultH);
+        String graphKey = getGraphKey(width, height);
+        String key = getKey(width, height);
+        if ("svg".equals(req.getParameter("format")) || awtUnavailable) {
+            key += "/svg";
+        }
+        if (getETag(key).equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (key.endsWith("/svg")) {
+            // the ETag only depends on the key, so the SVG need not be kept to be tagged
+            rsp.setHeader("ETag", getETag(key));
+            rsp.setContentType(SVG);
+            Writer out = rsp.getCompressedWriter(req);
+            try {
+                createCoverageChart().writeSvg(out, width, height);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+
+        Rendering rendering;
+        synchronized (CACHE) {
+            rendering = CACHE.get(key);
+        }
+        if (rendering == null) {
+            rendering = render(key, width, height);
+        }
+        if (rendering != null) {
+            rsp.setHeader("ETag", getETag(rendering.key));
+            rendering.write(req, rsp);
+            return;
+        }
+
+        synchronized (CACHE) {
+            for (Rendering r : CACHE.values()) {
+                if (r.key.startsWith(graphKey)) {
+                    rendering = r; // keep looking, the most recently used comes last
+                }
+            }
+        }
+        rsp.setHeader("Cache-Control", "no-cache");
+        if (rendering == null) {
+            rendering = new Rendering(key, SVG, placeholder(width, height).getBytes("UTF-8"));
+        }
+        rendering.write(req, rsp);
+    }
+
+    /**
+     * Draws the graph on the render pool, unless the same graph is being drawn already.
+     *
+     * @return the rendering, or {@code null} if the pool is saturated or the graph took too long
+     */
+    private Rendering render(final String key, final int width, final int height) throws IOException {
+        Future<Rendering> future;
+        synchronized (PENDING) {
+            future = PENDING.get(key);
+            if (future == null) {
+                future = getRenderer().submit(new Callable<Rendering>() {
+                    public Rendering call() throws IOException {
+                        try {
+                            Rendering rendering = draw(key, width, height);
+                            put(rendering, getNodeKey());
+                            return rendering;
+                        } finally {
+                            synchronized (PENDING) {
+                                PENDING.remove(key);
+                            }
+                        }
+                    }
+                });
+                if (future == null) {
+                    return null;
+                }
+                PENDING.put(key, future);
+            }
+        }
+        try {
+            return future.get(RENDER_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // let it finish, so that it is cached for the next request
+            getRenderer().timedOut();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the coverage graph");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Rendering draw(String key, int width, int height) throws IOException {
+        CoverageChart chart = createCoverageChart();
+        if (!key.endsWith("/svg")) {
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                ChartUtilities.writeChartAsPNG(buffer, chart.createChart(width), width, height);
+                return new Rendering(key, "image/png", buffer.toByteArray());
+            } catch (HeadlessException e) {
+                disableAwt(e);
+            } catch (LinkageError e) {
+                // missing native libraries or font configuration
+                disableAwt(e);
+            } catch (InternalError e) {
+                // "Probable fatal error: No fonts found", which Graph checks for as well
+                disableAwt(e);
+            }
+            key += "/svg";
+        }
+        // AWT just failed: this once the SVG is kept, as the request waits for a rendering
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(buffer, "UTF-8");
+        chart.writeSvg(out, width, height);
+        out.close();
+        return new Rendering(key, SVG, buffer.toByteArray());
+    }
+
+    private static void disableAwt(Throwable t) {
+        if (!awtUnavailable) {
+            LOGGER.log(Level.WARNING, "Cannot render coverage graphs with AWT, serving them as SVG from now on", t);
+            awtUnavailable = true;
+        }
+    }
+
+    private static String placeholder(int width, int height) {
+        return "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" font-family=\"sans-serif\" font-size=\"12\"><rect width=\"100%\" height=\"100%\" fill=\"white\"/>"
+                + "<text x=\"50%\" y=\"50%\" text-anchor=\"middle\" fill=\"#555753\">"
+                + "The coverage graph is being drawn, reload the page to see it.</text></svg>";
+    }
+
+    private static synchronized ChartRenderer getRenderer() {
+        if (renderer == null) {
+            renderer = new ChartRenderer("Coverage graph renderer", RENDER_THREADS, RENDER_QUEUE);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(renderer,
+                        new ObjectName("hudson.plugins.cobertura:type=ChartRenderer"));
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Cannot expose the coverage graph render statistics through JMX", e);
+            }
+        }
+        return renderer;
+    }
+
+    /**
+     * A rendered image.
+     */
+    private static final class Rendering {
+        final String key;
+        final String contentType;
+        final byte[] data;
+
+        Rendering(String key, String contentType, byte[] data) {
+            this.key = key;
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        void write(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setContentType(contentType);
+            OutputStream out;
+            if (SVG.equals(contentType)) {
+                out = rsp.getCompressedOutputStream(req);
+            } else {
+                rsp.setContentLength(data.length);
+                out = rsp.getOutputStream();
+            }
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Collects the data of the graph.
+     *
+     * @return the chart data
+     */
+    protected abstract CoverageChart createCoverageChart();
+
+    @Override
+    protected JFreeChart createGraph() {
+        return createCoverageChart().createChart(defaultW);
+    }
+
+    /**
+     * Caches a rendering, dropping the least recently used ones to stay within {@link #CACHE_SIZE} and
+     * {@link #CACHED_SIZES}.
+     *
+     * @param rendering the rendering to cache
+     * @param nodeKey   what identifies the graph whatever its size
+     */
+    private static void put(Rendering rendering, String nodeKey) {
+        if (rendering.data.length > CACHE_SIZE) {
+            return;
+        }
+        synchronized (CACHE) {
+            Rendering old = CACHE.put(rendering.key, rendering);
+            cachedBytes += rendering.data.length - (old == null ? 0 : old.data.length);
+            int sameGraph = 0;
+            for (String key : CACHE.keySet()) {
+                if (key.startsWith(nodeKey)) {
+                    sameGraph++;
+                }
+            }
+            Iterator<Rendering> it = CACHE.values().iterator();
+            while ((cachedBytes > CACHE_SIZE || sameGraph > CACHED_SIZES) && it.hasNext()) {
+                Rendering r = it.next();
+                if (cachedBytes <= CACHE_SIZE && !r.key.startsWith(nodeKey)) {
+                    continue;
+                }
+                if (r.key.startsWith(nodeKey)) {
+                    sameGraph--;
+                }
+                cachedBytes -= r.data.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the graphs of a job when its history changes. Entries keyed by an older generation are
+     * not looked up anymore and fall out of the cache as newer ones come in.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            if (r.getAction(CoberturaBuildAction.class) != null) {
+                bumpGeneration(r.getParent());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            bumpGeneration(r.getParent());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package hudson.plugins.cobertura;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoverageSummary;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-job index used to answer node-level history queries from {@link CoverageSummary} files.
+ *
+ * <p>
+ * {@link CoverageResult#getPreviousResult()} resolves the previous build at the root and then walks down the
+ * previous tree by name, so charting a method node loads the full report of every build on the chart. This
+ * index remembers which build precedes which, and looks nodes up by {@link CoverageResult#getNodeId()} in the
+ * per-build summaries instead.
+ */
+public final class CoverageHistory {
+
+    /**
+     * Marker for "there is no previous build with coverage". Build numbers start at 1.
+     */
+    private static final int NONE = 0;
+
+    private static final Map<Job<?, ?>, CoverageHistory> HISTORIES =
+            Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, CoverageHistory>());
+
+    /**
+     * Build number to the number of the previous not failed build with coverage, or {@link #NONE}.
+     */
+    private final TIntIntMap previous = new TIntIntHashMap();
+
+    private CoverageHistory() {
+    }
+
+    /**
+     * Gets the index of the given job.
+     *
+     * @param job the job
+     * @return the index, never {@code null}
+     */
+    public static CoverageHistory of(Job<?, ?> job) {
+        synchronized (HISTORIES) {
+            CoverageHistory history = HISTORIES.get(job);
+            if (history == null) {
+                history = new CoverageHistory();
+                HISTORIES.put(job, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Gets the build whose coverage precedes the given build, following the same rules as
+     * {@link CoverageResult#getPreviousResult()}.
+     *
+     * @param build a build of this job
+     * @return the previous build with a {@link CoberturaBuildAction}, or {@code null}
+     */
+    public Run<?, ?> getPrevious(Run<?, ?> build) {
+        int number;
+        synchronized (this) {
+            number = previous.containsKey(build.getNumber()) ? previous.get(build.getNumber()) : -1;
+        }
+        if (number == NONE) {
+            return null;
+        }
+        if (number > 0) {
+            Run<?, ?> b = build.getParent().getBuildByNumber(number);
+            if (b != null && b.getAction(CoberturaBuildAction.class) != null) {
+                return b;
+            }
+        }
+        Run<?, ?> b = BuildUtils.getPreviousNotFailedCompletedBuild(build);
+        while (b != null && b.getAction(CoberturaBuildAction.class) == null) {
+            b = BuildUtils.getPreviousNotFailedCompletedBuild(b);
+        }
+        synchronized (this) {
+            previous.put(build.getNumber(), b == null ? NONE : b.getNumber());
+        }
+        return b;
+    }
+
+    /**
+     * Drops every link that involves the given build.
+     */
+    private synchronized void forget(int number) {
+        previous.remove(number);
+        for (int key : previous.keys()) {
+            if (previous.get(key) == number) {
+                previous.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Gets the summary of a build, creating it from the report for builds published before summaries existed.
+     */
+    private static CoverageSummary getSummary(CoberturaBuildAction action) {
+        CoverageSummary summary = action.getSummary();
+        if (summary == null && action.getResult() != null) {
+            // loading the report writes the missing summary
+            summary = action.getSummary();
+        }
+        return summary;
+    }
+
+    /**
+     * Gets a {@link Chartable} for the given element whose history is served from this index.
+     *
+     * @param node an element of a build's coverage tree
+     * @return the chartable; the element itself if it is not attached to a build
+     */
+    public static Chartable chartable(CoverageResult node) {
+        Run<?, ?> owner = node.getOwner();
+        if (owner == null) {
+            return node;
+        }
+        return new NodeChartable(of(owner.getParent()), owner, node.getNodeId(), node.getResults());
+    }
+
+    /**
+     * One point of a node's history.
+     */
+    private static final class NodeChartable implements Chartable {
+        private final CoverageHistory history;
+        private final Run<?, ?> owner;
+        private final long nodeId;
+        private final Map<CoverageMetric, Ratio> results;
+
+        NodeChartable(CoverageHistory history, Run<?, ?> owner, long nodeId, Map<CoverageMetric, Ratio> results) {
+            this.history = history;
+            this.owner = owner;
+            this.nodeId = nodeId;
+            this.results = results;
+        }
+
+        public Chartable getPreviousResult() {
+            Run<?, ?> b = history.getPrevious(owner);
+            if (b == null) {
+                return null;
+            }
+            CoverageSummary summary = getSummary(b.getAction(CoberturaBuildAction.class));
+            int index = summary == null ? -1 : summary.find(nodeId);
+            if (index < 0) {
+                return null;
+            }
+            return new NodeChartable(history, b, nodeId, summary.getResults(index));
+        }
+
+        public Map<CoverageMetric, Ratio> getResults() {
+            return results;
+        }
+
+        public Run<?, ?> getOwner() {
+            return owner;
+        }
+    }
+
+    /**
+     * Keeps the indexes consistent with build deletion.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            CoverageHistory history = HISTORIES.get(r.getParent());
+            if (history != null) {
+                history.forget(r.getNumber());
+            }
+        }
+    }
+}
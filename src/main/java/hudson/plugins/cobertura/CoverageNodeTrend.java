@@ -0,0 +1,660 @@
+package hudson.plugins.cobertura;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoverageSummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job index of the metric counters of every element of every build, so that the trend graph of a package,
+ * class or method is drawn from one file instead of from the coverage tree of each build on the graph.
+ *
+ * <p>
+ * The data file holds one block per build, appended when the build is published:
+ * {@code (int number, int count, (long nodeId, (float numerator, float denominator)*)[count])}, rows sorted by
+ * node id, one counter pair per {@link CoverageMetric} and a {@code NaN} denominator for metrics a node does not
+ * have. The directory file lists {@code (int number, long offset, int length)} for every live block. A node is
+ * looked up in the blocks in file order, trying the row it had in the previous block first, which is one read per
+ * build as long as the tree does not change. Blocks of deleted builds are dropped from the directory, and the
+ * data file is compacted once they take up more space than the live ones. Files of an earlier format are started
+ * over, the blocks being filled in again from the summaries of the builds.
+ */
+public final class CoverageNodeTrend {
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageNodeTrend.class.getName());
+
+    /**
+     * Name of the data file inside the job directory.
+     */
+    public static final String DATA_FILE_NAME = "cobertura-nodes.dat";
+
+    /**
+     * Name of the directory file inside the job directory.
+     */
+    public static final String INDEX_FILE_NAME = "cobertura-nodes.idx";
+
+    private static final int MAGIC = 0x4356524e; // "CVRN"
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int ENTRY_SIZE = 16;
+
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+
+    private static final int ROW_SIZE = 8 + METRICS.length * 8;
+
+    /**
+     * Serializes the modifications of the index of each job against each other and against lookups, keyed by the
+     * directory file.
+     */
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+    /**
+     * The directory files of the indexes being compacted, which happens without holding their lock.
+     */
+    private static final Set<File> COMPACTING = Collections.synchronizedSet(new HashSet<File>());
+
+    /**
+     * Do not instantiate CoverageNodeTrend.
+     */
+    private CoverageNodeTrend() {
+    }
+
+    /**
+     * The counters of every node of one build, one row per node in the order they are written.
+     */
+    static final class Block {
+        final int number;
+        final long[] nodeIds;
+        final float[] counters;
+
+        private Block(int number, int size) {
+            this.number = number;
+            this.nodeIds = new long[size];
+            this.counters = new float[size * METRICS.length * 2];
+        }
+
+        /**
+         * Creates the block of a build from its coverage tree.
+         */
+        static Block of(int number, CoverageResult root) {
+            List<CoverageResult> nodes = new ArrayList<CoverageResult>();
+            collect(root, nodes);
+            long[] ids = new long[nodes.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = nodes.get(i).getNodeId();
+            }
+            int[] order = sortedOrder(ids);
+            Block block = new Block(number, ids.length);
+            for (int i = 0; i < order.length; i++) {
+                block.set(i, ids[order[i]], nodes.get(order[i]).getResults());
+            }
+            return block;
+        }
+
+        /**
+         * Creates the block of a build from its summary, for builds published before this index existed.
+         */
+        static Block of(int number, CoverageSummary summary) {
+            long[] ids = new long[summary.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = summary.getNodeId(i);
+            }
+            int[] order = sortedOrder(ids);
+            Block block = new Block(number, ids.length);
+            for (int i = 0; i < order.length; i++) {
+                block.set(i, ids[order[i]], summary.getResults(order[i]));
+            }
+            return block;
+        }
+
+        private void set(int i, long nodeId, Map<CoverageMetric, Ratio> results) {
+            nodeIds[i] = nodeId;
+            for (int m = 0; m < METRICS.length; m++) {
+                Ratio r = results.get(METRICS[m]);
+                counters[(i * METRICS.length + m) * 2] = r == null ? 0 : r.numerator;
+                counters[(i * METRICS.length + m) * 2 + 1] = r == null ? Float.NaN : r.denominator;
+            }
+        }
+
+        int length() {
+            return 8 + nodeIds.length * ROW_SIZE;
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putInt(number);
+            buffer.putInt(nodeIds.length);
+            for (int i = 0; i < nodeIds.length; i++) {
+                buffer.putLong(nodeIds[i]);
+                for (int c = i * METRICS.length * 2; c < (i + 1) * METRICS.length * 2; c++) {
+                    buffer.putFloat(counters[c]);
+                }
+            }
+        }
+    }
+
+    private static void collect(CoverageResult node, List<CoverageResult> nodes) {
+        nodes.add(node);
+        for (CoverageResult child : node.getChildrenReal().values()) {
+            collect(child, nodes);
+        }
+    }
+
+    private static int[] sortedOrder(long[] ids) {
+        long[][] pairs = new long[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            pairs[i] = new long[] {ids[i], i};
+        }
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        int[] order = new int[ids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (int) pairs[i][1];
+        }
+        return order;
+    }
+
+    private static File getDataFile(Job<?, ?> job) {
+        return new File(job.getRootDir(), DATA_FILE_NAME);
+    }
+
+    private static File getIndexFile(Job<?, ?> job) {
+        return new File(job.getRootDir(), INDEX_FILE_NAME);
+    }
+
+    /**
+     * Adds the counters of a newly published build.
+     *
+     * @param build the build
+     * @param root  the root of its coverage tree, with the owner set so that results are aggregated
+     * @throws IOException if the index cannot be written
+     */
+    public static void append(Run<?, ?> build, CoverageResult root) throws IOException {
+        append(getDataFile(build.getParent()), getIndexFile(build.getParent()), Block.of(build.getNumber(), root));
+    }
+
+    static void append(File data, File index, Block block) throws IOException {
+        append(data, index, Collections.singletonList(block));
+    }
+
+    /**
+     * Adds several blocks with a single rewrite of the directory.
+     */
+    static void append(File data, File index, List<Block> blocks) throws IOException {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        synchronized (getLock(index)) {
+            List<long[]> added = new ArrayList<long[]>(blocks.size());
+            Set<Integer> numbers = new HashSet<Integer>();
+            RandomAccessFile raf = new RandomAccessFile(data, "rw");
+            try {
+                if (raf.length() < HEADER_SIZE || !isCurrent(raf, data)) {
+                    // the directory of an earlier format reads as empty, and is replaced below
+                    writeHeader(raf);
+                }
+                long offset = raf.length();
+                raf.seek(offset);
+                for (Block block : blocks) {
+                    ByteBuffer buffer = ByteBuffer.allocate(block.length());
+                    block.write(buffer);
+                    raf.write(buffer.array());
+                    added.add(new long[] {block.number, offset, block.length()});
+                    numbers.add(block.number);
+                    offset += block.length();
+                }
+            } finally {
+                raf.close();
+            }
+            // the blocks only become visible once the directory points at them
+            List<long[]> entries = readIndex(index);
+            for (Iterator<long[]> i = entries.iterator(); i.hasNext();) {
+                if (numbers.contains((int) i.next()[0])) {
+                    i.remove(); // republished; the old block is now dead
+                }
+            }
+            entries.addAll(added);
+            writeIndex(index, entries);
+        }
+    }
+
+    private static Object getLock(File index) {
+        Object lock = new Object();
+        Object existing = LOCKS.putIfAbsent(index.getAbsoluteFile(), lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * Reads the directory as {@code (number, offset, length)} triples.
+     */
+    private static List<long[]> readIndex(File index) throws IOException {
+        List<long[]> entries = new ArrayList<long[]>();
+        if (!index.exists()) {
+            return entries;
+        }
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        try {
+            if (!isCurrent(raf, index)) {
+                return entries;
+            }
+            int count = (int) ((raf.length() - HEADER_SIZE) / ENTRY_SIZE);
+            byte[] bytes = new byte[count * ENTRY_SIZE];
+            raf.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < count; i++) {
+                entries.add(new long[] {buffer.getInt(), buffer.getLong(), buffer.getInt()});
+            }
+        } finally {
+            raf.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the directory, so that concurrent readers see either the old or the new one.
+     */
+    private static void writeIndex(File index, List<long[]> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(METRICS.length);
+        for (long[] e : entries) {
+            buffer.putInt((int) e[0]).putLong(e[1]).putInt((int) e[2]);
+        }
+        replace(index, buffer.array());
+    }
+
+    private static void replace(File file, byte[] content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(content);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    private static void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.setLength(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(METRICS.length);
+    }
+
+    /**
+     * Checks the header of a file.
+     *
+     * @return whether the file has the current format, {@code false} if it was written by an earlier version
+     * @throws IOException if the file is not a coverage node index at all
+     */
+    private static boolean isCurrent(RandomAccessFile raf, File file) throws IOException {
+        raf.seek(0);
+        if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+            throw new IOException(file + " is not a coverage node index");
+        }
+        return raf.readInt() == VERSION && raf.readInt() == METRICS.length;
+    }
+
+    /**
+     * Drops the block of a deleted build, and compacts the data file once dead blocks outweigh live ones.
+     */
+    static void remove(File data, File index, int number) throws IOException {
+        synchronized (getLock(index)) {
+            List<long[]> entries = readIndex(index);
+            boolean found = false;
+            long live = 0;
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i)[0] == number) {
+                    entries.remove(i);
+                    found = true;
+                } else {
+                    live += entries.get(i)[2];
+                }
+            }
+            if (!found) {
+                return;
+            }
+            writeIndex(index, entries);
+            if (data.length() - HEADER_SIZE - live <= live) {
+                return;
+            }
+        }
+        if (COMPACTING.add(index.getAbsoluteFile())) {
+            try {
+                compact(data, index);
+            } finally {
+                COMPACTING.remove(index.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * Copies the live blocks into a new data file without holding the lock, so that builds can be published and
+     * graphs drawn meanwhile, then swaps it in under the lock along with the blocks appended in the meantime.
+     * Blocks are only ever appended, so what the data file holds up to its length at the start does not change
+     * until the swap.
+     */
+    private static void compact(File data, File index) throws IOException {
+        List<long[]> live;
+        long length;
+        synchronized (getLock(index)) {
+            live = readIndex(index);
+            length = data.length();
+        }
+        Collections.sort(live, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+            }
+        });
+        Map<Long, Long> moved = new HashMap<Long, Long>();
+        File tmp = new File(data.getPath() + ".tmp");
+        RandomAccessFile in = new RandomAccessFile(data, "r");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            writeHeader(out);
+            for (long[] e : live) {
+                byte[] block = new byte[(int) e[2]];
+                in.seek(e[1]);
+                in.readFully(block);
+                moved.put(e[1], out.getFilePointer());
+                out.write(block);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        synchronized (getLock(index)) {
+            if (data.length() < length) {
+                // started over meanwhile
+                tmp.delete();
+                return;
+            }
+            List<long[]> current = readIndex(index);
+            in = new RandomAccessFile(data, "r");
+            out = new RandomAccessFile(tmp, "rw");
+            long shift;
+            try {
+                // the blocks appended since the copy started
+                shift = out.length() - length;
+                byte[] tail = new byte[(int) (in.length() - length)];
+                in.seek(length);
+                in.readFully(tail);
+                out.seek(out.length());
+                out.write(tail);
+            } finally {
+                in.close();
+                out.close();
+            }
+            for (Iterator<long[]> i = current.iterator(); i.hasNext();) {
+                long[] e = i.next();
+                if (e[1] >= length) {
+                    e[1] += shift;
+                } else if (moved.containsKey(e[1])) {
+                    e[1] = moved.get(e[1]);
+                } else {
+                    i.remove();
+                }
+            }
+            // no reader can hold a directory that is newer than the data file it points into
+            if (!tmp.renameTo(data) && !(data.delete() && tmp.renameTo(data))) {
+                throw new IOException("Failed to replace " + data);
+            }
+            writeIndex(index, current);
+        }
+    }
+
+    /**
+     * Looks up the counters of one node in several builds.
+     *
+     * @param numbers the build numbers
+     * @param nodeId  the {@link CoverageResult#getNodeId()} of the node
+     * @return for each build, the results of the node; {@code null} where the build has no block in the index,
+     *         and an empty map where the build has a block but not the node
+     */
+    static List<Map<CoverageMetric, Ratio>> lookup(File data, File index, int[] numbers, long nodeId) throws IOException {
+        List<Map<CoverageMetric, Ratio>> results = new ArrayList<Map<CoverageMetric, Ratio>>(numbers.length);
+        synchronized (getLock(index)) {
+            // a consistent pair of directory and data file; lookups are short compared to compaction
+            Map<Integer, long[]> entries = new HashMap<Integer, long[]>();
+            for (long[] entry : readIndex(index)) {
+                entries.put((int) entry[0], entry);
+            }
+            // the blocks of the builds asked for, in the order they are in the file
+            final long[][] found = new long[numbers.length][];
+            List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < numbers.length; i++) {
+                found[i] = entries.get(numbers[i]);
+                results.add(null);
+                if (found[i] != null) {
+                    order.add(i);
+                }
+            }
+            if (order.isEmpty()) {
+                return results;
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long x = found[a][1];
+                    long y = found[b][1];
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            RandomAccessFile raf = new RandomAccessFile(data, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer row = ByteBuffer.allocate(ROW_SIZE);
+                int hint = 0;
+                for (int i : order) {
+                    long offset = found[i][1] + 8;
+                    int size = (int) ((found[i][2] - 8) / ROW_SIZE);
+                    int at = -1;
+                    if (hint < size) {
+                        row.clear();
+                        readFully(channel, row, offset + (long) hint * ROW_SIZE);
+                        if (row.getLong(0) == nodeId) {
+                            at = hint;
+                        }
+                    }
+                    if (at < 0) {
+                        at = search(channel, offset, size, nodeId);
+                        if (at >= 0) {
+                            row.clear();
+                            readFully(channel, row, offset + (long) at * ROW_SIZE);
+                            hint = at;
+                        }
+                    }
+                    results.set(i, at < 0 ? Collections.<CoverageMetric, Ratio>emptyMap() : toResults(row));
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Binary search of the rows of a block by node id.
+     *
+     * @return the row of the node, or -1 if the block does not have it
+     */
+    private static int search(FileChannel channel, long offset, int size, long nodeId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            buffer.clear();
+            readFully(channel, buffer, offset + (long) mid * ROW_SIZE);
+            long midId = buffer.getLong(0);
+            if (midId < nodeId) {
+                low = mid + 1;
+            } else if (midId > nodeId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<CoverageMetric, Ratio> toResults(ByteBuffer row) {
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        for (int m = 0; m < METRICS.length; m++) {
+            float numerator = row.getFloat(8 + m * 8);
+            float denominator = row.getFloat(12 + m * 8);
+            if (!Float.isNaN(denominator)) {
+                results.put(METRICS[m], Ratio.create(numerator, denominator));
+            }
+        }
+        return results;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated coverage node index");
+            }
+        }
+    }
+
+    /**
+     * Collects the trend graph of an element of a build's coverage tree from this index, using the
+     * {@link CoverageTrend} for the builds on the graph. Falls back to {@link CoverageHistory} where either does
+     * not know the build yet.
+     *
+     * @param node the element
+     * @return the chart data
+     */
+    public static CoverageChart createChart(CoverageResult node) {
+        Run<?, ?> owner = node.getOwner();
+        CoberturaBuildAction action = owner == null ? null : owner.getAction(CoberturaBuildAction.class);
+        if (action == null) {
+            return new CoverageChart(CoverageHistory.chartable(node));
+        }
+        List<CoverageTrend.Record> window = CoverageTrend.read(owner, action.getMaxNumberOfBuilds());
+        if (window != null && window.size() >= 2) {
+            try {
+                List<CoverageTrend.Record> points = getPoints(owner.getParent(), window, node);
+                if (points.size() >= 2) {
+                    return new CoverageChart(points, action.getZoomCoverageChart());
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the coverage node index of " + owner.getParent(), e);
+            }
+        }
+        return new CoverageChart(CoverageHistory.chartable(node));
+    }
+
+    /**
+     * Turns the project level points of a window into points of the given element. Like
+     * {@link CoverageResult#getPreviousResult()}, the series ends at the first build that does not have the element.
+     */
+    static List<CoverageTrend.Record> getPoints(Job<?, ?> job, List<CoverageTrend.Record> window,
+            CoverageResult node) throws IOException {
+        File data = getDataFile(job);
+        File index = getIndexFile(job);
+        int[] numbers = new int[window.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = window.get(i).number;
+        }
+        List<Map<CoverageMetric, Ratio>> results = lookup(data, index, numbers, node.getNodeId());
+        int head = node.getOwner() == null ? -1 : node.getOwner().getNumber();
+        Map<Integer, CoverageSummary> backfilled = backfill(job, numbers, results, head, data, index);
+        List<CoverageTrend.Record> points = new ArrayList<CoverageTrend.Record>(window.size());
+        for (int i = 0; i < numbers.length; i++) {
+            Map<CoverageMetric, Ratio> r = numbers[i] == head ? node.getResults() : results.get(i);
+            if (r == null && backfilled.containsKey(numbers[i])) {
+                CoverageSummary summary = backfilled.get(numbers[i]);
+                r = summary.getResults(summary.find(node.getNodeId()));
+            }
+            if (r == null || r.isEmpty()) {
+                break;
+            }
+            points.add(window.get(i).withResults(r));
+        }
+        return points;
+    }
+
+    /**
+     * Adds the blocks of the builds of a window that were published before this index existed, from their summaries,
+     * all at once.
+     *
+     * @return the summaries of those builds, by build number; builds without coverage are left out
+     */
+    private static Map<Integer, CoverageSummary> backfill(Job<?, ?> job, int[] numbers,
+            List<Map<CoverageMetric, Ratio>> results, int head, File data, File index) throws IOException {
+        Map<Integer, CoverageSummary> summaries = new HashMap<Integer, CoverageSummary>();
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < numbers.length; i++) {
+            if (results.get(i) != null || numbers[i] == head) {
+                continue;
+            }
+            Run<?, ?> build = job.getBuildByNumber(numbers[i]);
+            CoberturaBuildAction action = build == null ? null : build.getAction(CoberturaBuildAction.class);
+            CoverageSummary summary = action == null ? null : action.getSummary();
+            if (summary == null && action != null && action.getResult() != null) {
+                summary = action.getSummary(); // loading the report writes the missing summary
+            }
+            if (summary != null) {
+                summaries.put(numbers[i], summary);
+                blocks.add(Block.of(numbers[i], summary));
+            }
+        }
+        append(data, index, blocks);
+        return summaries;
+    }
+
+    /**
+     * Keeps the index consistent with build deletion.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            File index = getIndexFile(r.getParent());
+            if (!index.exists()) {
+                return;
+            }
+            try {
+                remove(getDataFile(r.getParent()), index, r.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update " + index + ", it will be recreated", e);
+                index.delete();
+                getDataFile(r.getParent()).delete();
+            }
+        }
+    }
+}
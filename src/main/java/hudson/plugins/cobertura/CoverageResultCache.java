@@ -0,0 +1,269 @@
+package hudson.plugins.cobertura;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cobertura.targets.CoverageResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Keeps recently used {@link CoverageResult} trees loaded, and lets them go when the controller runs short of heap.
+ *
+ * <p>
+ * Heap usage is watched through the collection usage thresholds of the heap {@link MemoryPoolMXBean}s. When the
+ * soft watermark is crossed, loaded trees are dropped least recently used first (largest first among trees last
+ * used in the same second) until the estimated excess is reclaimed. While usage stays above the hard watermark,
+ * {@link #isLoadRefused()} tells {@link CoberturaBuildAction} to serve summaries instead of loading full reports.
+ * The trees of deleted builds and jobs are dropped as soon as they get deleted, as the cache would otherwise keep
+ * them reachable.
+ */
+public final class CoverageResultCache {
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageResultCache.class.getName());
+
+    /**
+     * Maximum number of trees kept loaded regardless of memory pressure.
+     */
+    public static int MAX_ENTRIES = Integer.getInteger(CoverageResultCache.class.getName() + ".maxEntries", 32);
+
+    /**
+     * Fraction of the heap above which loaded trees are evicted.
+     */
+    public static double SOFT_WATERMARK = parseFraction("softWatermark", 0.75);
+
+    /**
+     * Fraction of the heap above which no new full reports are loaded.
+     */
+    public static double HARD_WATERMARK = parseFraction("hardWatermark", 0.90);
+
+    private static final Map<CoberturaBuildAction, Entry> ENTRIES = new LinkedHashMap<CoberturaBuildAction, Entry>(16, 0.75f, true);
+
+    private static boolean watching;
+
+    /**
+     * Do not instantiate CoverageResultCache.
+     */
+    private CoverageResultCache() {
+    }
+
+    private static double parseFraction(String name, double defaultValue) {
+        String value = System.getProperty(CoverageResultCache.class.getName() + "." + name);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static final class Entry {
+        final CoverageResult result;
+        final long size;
+        long lastAccess;
+
+        Entry(CoverageResult result, long size) {
+            this.result = result;
+            this.size = size;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records that the given tree of the given build has been loaded or used.
+     *
+     * @param action the owning action
+     * @param result the loaded tree
+     */
+    static void put(CoberturaBuildAction action, CoverageResult result) {
+        List<CoberturaBuildAction> evicted = new ArrayList<CoberturaBuildAction>();
+        synchronized (ENTRIES) {
+            watch();
+            Entry e = ENTRIES.get(action);
+            if (e != null && e.result == result) {
+                e.lastAccess = System.currentTimeMillis();
+                return;
+            }
+            ENTRIES.put(action, new Entry(result, result.estimateMemoryUsage()));
+            Iterator<Map.Entry<CoberturaBuildAction, Entry>> it = ENTRIES.entrySet().iterator();
+            while (ENTRIES.size() > MAX_ENTRIES && it.hasNext()) {
+                Map.Entry<CoberturaBuildAction, Entry> eldest = it.next();
+                it.remove();
+                evicted.add(eldest.getKey());
+            }
+        }
+        // outside of the lock, as actions synchronize on themselves while calling into this class
+        for (CoberturaBuildAction a : evicted) {
+            a.dropResult();
+        }
+    }
+
+    /**
+     * Drops the tree of a build, or the trees of all builds of a job or of the jobs in a folder.
+     *
+     * @param item  the job or folder whose builds to drop, or {@code null} to drop the given build only
+     * @param build the build to drop if no item is given
+     */
+    static void remove(Item item, Run<?, ?> build) {
+        String folder = item == null ? null : item.getFullName() + '/';
+        synchronized (ENTRIES) {
+            for (Iterator<CoberturaBuildAction> it = ENTRIES.keySet().iterator(); it.hasNext();) {
+                Run<?, ?> owner = it.next().getOwner();
+                if (owner == null) {
+                    it.remove();
+                } else if (item == null ? owner == build
+                        : owner.getParent() == item || owner.getParent().getFullName().startsWith(folder)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether heap usage is above the hard watermark, in which case callers should not load full reports.
+     *
+     * @return {@code true} if full loads should be refused
+     */
+    public static boolean isLoadRefused() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : pool.getUsage();
+            if (usage != null && usage.getMax() > 0 && usage.getUsed() > usage.getMax() * HARD_WATERMARK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evicts loaded trees until the given number of bytes is (estimated to be) reclaimed.
+     *
+     * @param excess the number of bytes to reclaim
+     */
+    static void evict(long excess) {
+        List<Map.Entry<CoberturaBuildAction, Entry>> candidates;
+        synchronized (ENTRIES) {
+            candidates = new ArrayList<Map.Entry<CoberturaBuildAction, Entry>>(ENTRIES.entrySet());
+        }
+        Collections.sort(candidates, EVICTION_ORDER);
+        long reclaimed = 0;
+        for (Map.Entry<CoberturaBuildAction, Entry> candidate : candidates) {
+            if (reclaimed >= excess) {
+                break;
+            }
+            synchronized (ENTRIES) {
+                if (ENTRIES.get(candidate.getKey()) != candidate.getValue()) {
+                    continue; // reloaded or already evicted meanwhile
+                }
+                ENTRIES.remove(candidate.getKey());
+            }
+            candidate.getKey().dropResult();
+            reclaimed += candidate.getValue().size;
+            LOGGER.log(Level.INFO, "Evicted coverage report of {0} under memory pressure, about {1} bytes reclaimed",
+                    new Object[] {candidate.getKey().getOwner(), candidate.getValue().size});
+        }
+    }
+
+    /**
+     * Least recently used first, and largest first among entries last used in the same second.
+     */
+    private static final Comparator<Map.Entry<CoberturaBuildAction, Entry>> EVICTION_ORDER =
+            new Comparator<Map.Entry<CoberturaBuildAction, Entry>>() {
+                public int compare(Map.Entry<CoberturaBuildAction, Entry> a, Map.Entry<CoberturaBuildAction, Entry> b) {
+                    long ageA = a.getValue().lastAccess / 1000;
+                    long ageB = b.getValue().lastAccess / 1000;
+                    if (ageA != ageB) {
+                        return ageA < ageB ? -1 : 1;
+                    }
+                    long sizeA = a.getValue().size;
+                    long sizeB = b.getValue().size;
+                    return sizeA == sizeB ? 0 : (sizeA > sizeB ? -1 : 1);
+                }
+            };
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Arms the soft watermark on the heap pools that support collection usage thresholds. Thresholds that
+     * something else has already configured are left alone; their notifications are acted upon all the same.
+     */
+    private static void watch() {
+        if (watching) {
+            return;
+        }
+        watching = true;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            if (!pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max > 0 && pool.getCollectionUsageThreshold() == 0) {
+                pool.setCollectionUsageThreshold((long) (max * SOFT_WATERMARK));
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    return;
+                }
+                long excess = 0;
+                for (MemoryPoolMXBean pool : heapPools()) {
+                    MemoryUsage usage = pool.getCollectionUsage();
+                    if (usage != null && usage.getMax() > 0) {
+                        excess = Math.max(excess, usage.getUsed() - (long) (usage.getMax() * SOFT_WATERMARK));
+                    }
+                }
+                // aim a little below the watermark so that the next collection does not trip it again at once
+                evict(excess + excess / 10);
+            }
+        }, null, null);
+    }
+
+    /**
+     * Lets go of the trees of deleted builds.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            remove(null, r);
+        }
+    }
+
+    /**
+     * Lets go of the trees of the builds of deleted jobs and folders.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            remove(item, null);
+        }
+    }
+}
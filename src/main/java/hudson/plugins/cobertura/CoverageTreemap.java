@@ -0,0 +1,273 @@
+package hudson.plugins.cobertura;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.targets.CoverageElement;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoverageSummary;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Draws the children of an element of a coverage report as an SVG treemap: the area of each child is its number
+ * of lines, its colour its line coverage, from red to green.
+ *
+ * <p>
+ * Everything comes from the {@link CoverageSummary} of the build, so neither the report nor any source paint is
+ * loaded. Only one level is drawn per request; clicking an element that has children of its own asks for the
+ * treemap of that element, so deep trees are fetched as the user zooms in. Methods are not drawn.
+ */
+public final class CoverageTreemap {
+
+    private static final int HEADER = 18;
+
+    /**
+     * Do not instantiate CoverageTreemap.
+     */
+    private CoverageTreemap() {
+    }
+
+    /**
+     * Serves the treemap of an element at {@code .../treemap}. The {@code node} parameter, the hexadecimal
+     * {@link CoverageResult#getNodeId()} of another element of the same build, zooms in or out.
+     *
+     * @param owner  the build
+     * @param nodeId the element to draw if the request does not say
+     * @param req    the stapler request
+     * @param rsp    the stapler response
+     * @throws IOException if the response cannot be written
+     */
+    public static void serve(Run<?, ?> owner, long nodeId, StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        CoberturaBuildAction action = owner == null ? null : owner.getAction(CoberturaBuildAction.class);
+        CoverageSummary summary = action == null ? null : action.getSummary();
+        String param = req.getParameter("node");
+        if (param != null) {
+            try {
+                nodeId = Long.parseLong(param, 16);
+            } catch (NumberFormatException e) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+        int node = summary == null ? -1 : summary.find(nodeId);
+        if (node < 0) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int width = Math.max(100, Math.min(2000, parseInt(req.getParameter("width"), 600)));
+        int height = Math.max(100, Math.min(2000, parseInt(req.getParameter("height"), 400)));
+
+        rsp.setContentType("image/svg+xml;charset=UTF-8");
+        Writer out = rsp.getCompressedWriter(req);
+        try {
+            write(summary, node, width, height, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Writes the treemap of the children of a node.
+     *
+     * @param summary the summary of the build
+     * @param node    index of the node in the summary
+     * @param width   width of the image
+     * @param height  height of the image
+     * @param out     where to write to
+     * @throws IOException if writing fails
+     */
+    static void write(final CoverageSummary summary, int node, int width, int height, Writer out)
+            throws IOException {
+        Integer[] cells = cells(summary, node);
+        Arrays.sort(cells, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Float.compare(lines(summary, b), lines(summary, a));
+            }
+        });
+        double[] sizes = new double[cells.length];
+        double total = 0;
+        for (int i = 0; i < cells.length; i++) {
+            sizes[i] = lines(summary, cells[i]);
+            total += sizes[i];
+        }
+        int mapHeight = height - HEADER;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] *= width * (double) mapHeight / total;
+        }
+        double[] rects = squarify(sizes, 0, HEADER, width, mapHeight);
+
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\""
+                + width + "\" height=\"" + height + "\" font-family=\"sans-serif\" font-size=\"10\">");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>");
+        int parent = summary.getParent(node);
+        out.write("<text x=\"2\" y=\"13\" font-size=\"12\">");
+        if (parent >= 0) {
+            out.write("<a xlink:href=\"" + link(summary, parent, width, height) + "\" fill=\"#3465a4\">&#x25B2; "
+                    + SvgChartWriter.escape(name(summary, parent)) + "</a> / ");
+        }
+        out.write(SvgChartWriter.escape(name(summary, node)) + "</text>");
+
+        for (int i = 0; i < cells.length; i++) {
+            int cell = cells[i];
+            double x = rects[4 * i];
+            double y = rects[4 * i + 1];
+            double w = rects[4 * i + 2];
+            double h = rects[4 * i + 3];
+            Ratio coverage = summary.getCoverage(cell, CoverageMetric.LINE);
+            String title = name(summary, cell) + ": " + coverage.getPercentage() + "% of "
+                    + (int) coverage.denominator + " lines";
+            boolean zoom = cells(summary, cell).length > 0;
+            if (zoom) {
+                out.write("<a xlink:href=\"" + link(summary, cell, width, height) + "\">");
+            }
+            out.write("<rect x=\"" + round(x) + "\" y=\"" + round(y) + "\" width=\"" + round(w) + "\" height=\""
+                    + round(h) + "\" fill=\"" + color(coverage.getPercentageFloat())
+                    + "\" stroke=\"white\" stroke-width=\"1\"><title>" + SvgChartWriter.escape(title)
+                    + "</title></rect>");
+            String label = name(summary, cell);
+            if (h >= 12 && w >= 6 * label.length() + 4) {
+                out.write("<text x=\"" + round(x + 2) + "\" y=\"" + round(y + 11) + "\" pointer-events=\"none\">"
+                        + SvgChartWriter.escape(label) + "</text>");
+            }
+            if (zoom) {
+                out.write("</a>");
+            }
+        }
+        out.write("</svg>");
+    }
+
+    /**
+     * The children of a node that are drawn: all but methods, and only those that have lines.
+     */
+    private static Integer[] cells(CoverageSummary summary, int node) {
+        int[] children = summary.getChildren(node);
+        Integer[] cells = new Integer[children.length];
+        int count = 0;
+        for (int child : children) {
+            if (summary.getElement(child) != CoverageElement.JAVA_METHOD && lines(summary, child) > 0) {
+                cells[count++] = child;
+            }
+        }
+        return Arrays.copyOf(cells, count);
+    }
+
+    private static float lines(CoverageSummary summary, int node) {
+        Ratio lines = summary.getCoverage(node, CoverageMetric.LINE);
+        return lines == null ? 0 : lines.denominator;
+    }
+
+    private static String name(CoverageSummary summary, int node) {
+        String name = summary.getName(node);
+        return summary.getParent(node) < 0 || name.length() == 0 ? summary.getElement(node).getDisplayName() : name;
+    }
+
+    private static String link(CoverageSummary summary, int node, int width, int height) {
+        return "treemap?node=" + Long.toHexString(summary.getNodeId(node)) + "&amp;width=" + width + "&amp;height="
+                + height;
+    }
+
+    /**
+     * From red at 0% over yellow to green at 100%.
+     */
+    static String color(float percentage) {
+        float p = Math.max(0, Math.min(100, percentage)) / 100;
+        int red = p < 0.5f ? 239 : Math.round(239 - (p - 0.5f) * 2 * (239 - 115));
+        int green = p < 0.5f ? Math.round(41 + p * 2 * (212 - 41)) : Math.round(212 + (p - 0.5f) * 2 * (210 - 212));
+        int blue = p < 0.5f ? 41 : Math.round(41 + (p - 0.5f) * 2 * (22 - 41));
+        return String.format("#%02x%02x%02x", red, green, blue);
+    }
+
+    /**
+     * Lays out rectangles of the given areas in the given rectangle with the squarified algorithm of Bruls,
+     * Huizing and van Wijk: rows are filled along the shorter side for as long as that does not make the
+     * aspect ratios of their rectangles worse.
+     *
+     * @param sizes the areas, largest first, summing up to {@code w * h}
+     * @return {@code x, y, width, height} of each rectangle, in the order of {@code sizes}
+     */
+    static double[] squarify(double[] sizes, double x, double y, double w, double h) {
+        double[] rects = new double[4 * sizes.length];
+        int start = 0;
+        while (start < sizes.length) {
+            double side = Math.min(w, h);
+            double sum = sizes[start];
+            double worst = worst(sizes[start], sizes[start], sum, side);
+            int end = start + 1;
+            while (end < sizes.length) {
+                double next = worst(sizes[start], sizes[end], sum + sizes[end], side);
+                if (next > worst) {
+                    break;
+                }
+                worst = next;
+                sum += sizes[end++];
+            }
+            double thickness = side == 0 ? 0 : sum / side;
+            if (end == sizes.length) {
+                // the last row takes what is left, which absorbs rounding errors
+                thickness = Math.max(w, h);
+            }
+            double offset = 0;
+            for (int i = start; i < end; i++) {
+                double length = sum == 0 ? 0 : sizes[i] / sum * side;
+                if (w >= h) {
+                    // the row is a column along the left edge
+                    set(rects, i, x, y + offset, thickness, length);
+                } else {
+                    set(rects, i, x + offset, y, length, thickness);
+                }
+                offset += length;
+            }
+            if (w >= h) {
+                x += thickness;
+                w -= thickness;
+            } else {
+                y += thickness;
+                h -= thickness;
+            }
+            start = end;
+        }
+        return rects;
+    }
+
+    /**
+     * The worst aspect ratio in a row, given its largest and smallest areas, total area and length.
+     */
+    private static double worst(double largest, double smallest, double sum, double side) {
+        if (sum == 0 || smallest == 0) {
+            return Double.MAX_VALUE;
+        }
+        double s2 = side * side;
+        return Math.max(s2 * largest / (sum * sum), sum * sum / (s2 * smallest));
+    }
+
+    private static void set(double[] rects, int i, double x, double y, double w, double h) {
+        rects[4 * i] = x;
+        rects[4 * i + 1] = y;
+        rects[4 * i + 2] = w;
+        rects[4 * i + 3] = h;
+    }
+
+    private static String round(double v) {
+        return String.valueOf(Math.round(v * 10) / 10.0);
+    }
+}
@@ -0,0 +1,591 @@
+package hudson.plugins.cobertura;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageSummary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job, append-only time series of the project level coverage of every build, used to draw trend graphs
+ * without loading the builds themselves.
+ *
+ * <p>
+ * The file starts with magic, version and the number of metrics per record, followed by fixed size records
+ * sorted by build number: {@code (int number, long timestamp, byte result, byte flags, (float numerator,
+ * float denominator)*)}, one counter pair per {@link CoverageMetric}, with a {@code NaN} denominator for metrics
+ * the build does not have. Records are appended as builds complete and removed again when builds get deleted.
+ * A job without a trend file gets one built from its history the first time it is read.
+ */
+public final class CoverageTrend {
+
+    private static final Logger LOGGER = Logger.getLogger(CoverageTrend.class.getName());
+
+    /**
+     * Name of the trend file inside the job directory.
+     */
+    public static final String FILE_NAME = "cobertura-trend.dat";
+
+    private static final int MAGIC = 0x43565254; // "CVRT"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+
+    static final int RECORD_SIZE = 4 + 8 + 1 + 1 + 8 * METRICS.length;
+
+    /**
+     * Set in {@link Record#flags} when the build only takes stable builds into account,
+     * see {@link CoberturaBuildAction#getPreviousResult(Run)}.
+     */
+    static final int ONLY_STABLE = 1;
+
+    /**
+     * Number of records read per step when scanning backwards for a window.
+     */
+    private static final int CHUNK = 256;
+
+    /**
+     * Serializes all modifications of trend files; they only happen on build completion and deletion.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Number of builds deleted per job, guarded by {@link #LOCK}, so that {@link #rebuild(Job)} can tell whether
+     * the history it collected is still current.
+     */
+    private static final Map<Job<?, ?>, Integer> DELETIONS = new WeakHashMap<Job<?, ?>, Integer>();
+
+    /**
+     * Cache of {@link #getSeries(Job)}.
+     */
+    private static final Map<Job<?, ?>, List<Record>> SERIES =
+            Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, List<Record>>());
+
+    /**
+     * Do not instantiate CoverageTrend.
+     */
+    private CoverageTrend() {
+    }
+
+    /**
+     * One build's point in the trend.
+     */
+    public static final class Record {
+        public final int number;
+        public final long timestamp;
+        /**
+         * {@link Result#ordinal} of the build.
+         */
+        public final int result;
+        final int flags;
+        private final float[] counters;
+
+        Record(int number, long timestamp, int result, int flags, float[] counters) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.flags = flags;
+            this.counters = counters;
+        }
+
+        /**
+         * Creates the point of a build.
+         *
+         * @param number     the build number
+         * @param timestamp  when the build started
+         * @param result     the result of the build
+         * @param onlyStable whether the build only takes stable builds into account
+         * @param results    the project level results of the build, see {@link CoberturaBuildAction#getResults()}
+         */
+        public Record(int number, long timestamp, Result result, boolean onlyStable, Map<CoverageMetric, Ratio> results) {
+            this(number, timestamp, result.ordinal, onlyStable ? ONLY_STABLE : 0, toCounters(results));
+        }
+
+        private static float[] toCounters(Map<CoverageMetric, Ratio> results) {
+            float[] counters = new float[METRICS.length * 2];
+            for (int m = 0; m < METRICS.length; m++) {
+                Ratio r = results.get(METRICS[m]);
+                counters[m * 2] = r == null ? 0 : r.numerator;
+                counters[m * 2 + 1] = r == null ? Float.NaN : r.denominator;
+            }
+            return counters;
+        }
+
+        /**
+         * Gets a copy of this record that carries other results, such as those of one element of the build.
+         */
+        Record withResults(Map<CoverageMetric, Ratio> results) {
+            return new Record(number, timestamp, result, flags, toCounters(results));
+        }
+
+        /**
+         * Gets the project level results of the build.
+         *
+         * @return the results, keyed by metric
+         */
+        public Map<CoverageMetric, Ratio> getResults() {
+            Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+            for (int m = 0; m < METRICS.length; m++) {
+                if (!Float.isNaN(counters[m * 2 + 1])) {
+                    results.put(METRICS[m], Ratio.create(counters[m * 2], counters[m * 2 + 1]));
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Gets the numerator of a project level result, without creating a {@link Ratio}.
+         */
+        float getNumerator(CoverageMetric metric) {
+            return counters[metric.ordinal() * 2];
+        }
+
+        /**
+         * Gets the denominator of a project level result, {@code NaN} if the build does not have it.
+         */
+        float getDenominator(CoverageMetric metric) {
+            return counters[metric.ordinal() * 2 + 1];
+        }
+
+        /**
+         * Whether a chart that starts at a later build goes through this one, following the same rules as
+         * {@link CoberturaBuildAction#getPreviousResult(Run)}.
+         */
+        boolean isCharted() {
+            if (result == Result.FAILURE.ordinal) {
+                return false;
+            }
+            return (flags & ONLY_STABLE) == 0 || result == Result.SUCCESS.ordinal;
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.putInt(number);
+            buffer.putLong(timestamp);
+            buffer.put((byte) result);
+            buffer.put((byte) flags);
+            for (float counter : counters) {
+                buffer.putFloat(counter);
+            }
+        }
+
+        private static Record read(ByteBuffer buffer) {
+            int number = buffer.getInt();
+            long timestamp = buffer.getLong();
+            int result = buffer.get();
+            int flags = buffer.get();
+            float[] counters = new float[METRICS.length * 2];
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = buffer.getFloat();
+            }
+            return new Record(number, timestamp, result, flags, counters);
+        }
+    }
+
+    private static File getFile(Job<?, ?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Gets the points of the trend graph that ends at the given build, newest first, the way
+     * {@link CoverageChart#CoverageChart(Chartable)} would collect them.
+     *
+     * @param head      the build the graph ends at
+     * @param maxBuilds the maximum number of points, 0 for no limit
+     * @return the points, or {@code null} if the trend file does not know the given build yet
+     */
+    public static List<Record> read(Run<?, ?> head, int maxBuilds) {
+        return read(head, 0, Integer.MAX_VALUE, maxBuilds);
+    }
+
+    /**
+     * Gets a page of the points {@link #read(Run, int)} would return, newest first, reading the trend file back
+     * from its end only as far as the page goes.
+     *
+     * @param head      the build the graph ends at
+     * @param since     only the points of builds after this one
+     * @param before    only the points of builds before this one
+     * @param maxBuilds the maximum number of points, 0 for no limit
+     * @return the points, or {@code null} if the trend file does not know the given build yet
+     */
+    public static List<Record> read(Run<?, ?> head, int since, int before, int maxBuilds) {
+        File file = getFile(head.getParent());
+        try {
+            if (!file.exists()) {
+                rebuild(head.getParent());
+            }
+            return read(file, head.getNumber(), since, before, maxBuilds);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the points of every build of a job that did not fail, oldest first. The series is read once and kept
+     * until a build of the job completes or gets deleted. A series that cannot be read is not kept, so that it is
+     * tried again next time.
+     *
+     * @param job the job
+     * @return the points, empty if they cannot be read
+     */
+    public static List<Record> getSeries(Job<?, ?> job) {
+        List<Record> series = SERIES.get(job);
+        if (series != null) {
+            return series;
+        }
+        File file = getFile(job);
+        series = new ArrayList<Record>();
+        try {
+            if (!file.exists()) {
+                rebuild(job);
+            }
+            for (Record r : readAll(file)) {
+                if (r.result != Result.FAILURE.ordinal) {
+                    series.add(r);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+            return Collections.emptyList();
+        }
+        series = Collections.unmodifiableList(series);
+        SERIES.put(job, series);
+        return series;
+    }
+
+    /**
+     * Reads a window of the trend file, see {@link #read(Run, int)}.
+     */
+    static List<Record> read(File file, int head, int maxBuilds) throws IOException {
+        return read(file, head, 0, Integer.MAX_VALUE, maxBuilds);
+    }
+
+    /**
+     * Reads a window of the trend file, scanning backwards from its end in sequential chunks until the window is
+     * full or reaches {@code since}.
+     */
+    static List<Record> read(File file, int head, int since, int before, int maxBuilds) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        List<Record> records = new ArrayList<Record>();
+        boolean started = false;
+        boolean done = false;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            checkHeader(raf, file);
+            // a record that is being appended concurrently is not complete yet, and ignored
+            int count = (int) ((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+            byte[] chunk = new byte[CHUNK * RECORD_SIZE];
+            int end = count;
+            while (end > 0 && !done && (maxBuilds == 0 || records.size() < maxBuilds)) {
+                int start = Math.max(0, end - CHUNK);
+                raf.seek(HEADER_SIZE + (long) start * RECORD_SIZE);
+                raf.readFully(chunk, 0, (end - start) * RECORD_SIZE);
+                List<Record> block = new ArrayList<Record>(end - start);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (end - start) * RECORD_SIZE);
+                while (buffer.hasRemaining()) {
+                    block.add(Record.read(buffer));
+                }
+                for (int i = block.size() - 1; i >= 0 && !done && (maxBuilds == 0 || records.size() < maxBuilds); i--) {
+                    Record r = block.get(i);
+                    if (!started) {
+                        if (r.number < head) {
+                            return null; // the head is not in the file
+                        }
+                        started = r.number == head;
+                        if (!started) {
+                            continue;
+                        }
+                    } else if (!r.isCharted()) {
+                        continue;
+                    }
+                    if (r.number <= since) {
+                        done = true;
+                    } else if (r.number < before) {
+                        records.add(r);
+                    }
+                }
+                end = start;
+            }
+        } finally {
+            raf.close();
+        }
+        return started ? records : null;
+    }
+
+    private static void checkHeader(RandomAccessFile raf, File file) throws IOException {
+        if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION
+                || raf.readInt() != METRICS.length) {
+            throw new IOException(file + " is not a coverage trend file");
+        }
+    }
+
+    /**
+     * Adds a record, keeping the file sorted by build number. Builds normally complete in order, so this is an
+     * append; a build that completes after a later one, or that is already in the file, makes the file get
+     * rewritten. Nothing is written if the file does not exist, as it is then created from the history on first use.
+     */
+    static void append(File file, Record record) throws IOException {
+        synchronized (LOCK) {
+            if (!file.exists()) {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                checkHeader(raf, file);
+                int count = (int) ((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+                int last = -1;
+                if (count > 0) {
+                    raf.seek(HEADER_SIZE + (long) (count - 1) * RECORD_SIZE);
+                    last = raf.readInt();
+                }
+                if (last < record.number) {
+                    ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+                    record.write(buffer);
+                    raf.seek(HEADER_SIZE + (long) count * RECORD_SIZE);
+                    raf.write(buffer.array());
+                    // drops what is left of a record torn by a crash
+                    raf.setLength(HEADER_SIZE + (long) (count + 1) * RECORD_SIZE);
+                    return;
+                }
+            } finally {
+                raf.close();
+            }
+            List<Record> records = readAll(file);
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i).number >= record.number) {
+                    if (records.get(i).number == record.number) {
+                        records.set(i, record);
+                    } else {
+                        records.add(i, record);
+                    }
+                    writeAll(file, records);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the file after a build got deleted.
+     */
+    static void remove(File file, int number) throws IOException {
+        synchronized (LOCK) {
+            List<Record> records = readAll(file);
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i).number == number) {
+                    records.remove(i);
+                    writeAll(file, records);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static List<Record> readAll(File file) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        if (!file.exists()) {
+            return records;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            checkHeader(raf, file);
+            int count = (int) ((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+            byte[] data = new byte[count * RECORD_SIZE];
+            raf.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            for (int i = 0; i < count; i++) {
+                records.add(Record.read(buffer));
+            }
+        } finally {
+            raf.close();
+        }
+        return records;
+    }
+
+    private static void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(METRICS.length);
+    }
+
+    /**
+     * Replaces the file, so that concurrent readers see either the old or the new content.
+     */
+    static void writeAll(File file, List<Record> records) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(METRICS.length);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            for (Record r : records) {
+                buffer.clear();
+                r.write(buffer);
+                out.write(buffer.array());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    private static int getDeletions(Job<?, ?> job) {
+        Integer deletions = DELETIONS.get(job);
+        return deletions == null ? 0 : deletions;
+    }
+
+    /**
+     * Creates the trend file of a job from its build history, for jobs that were built before trend files existed.
+     * Only what the builds persisted is read, never the reports, and the history is collected before taking the lock.
+     *
+     * <p>
+     * Completion and deletion listeners leave the file alone while it does not exist, so the history is checked
+     * again under the lock: the builds that were still running or that started after it was collected are read
+     * again, and it is collected anew if a build got deleted meanwhile.
+     */
+    private static void rebuild(Job<?, ?> job) throws IOException {
+        File file = getFile(job);
+        while (true) {
+            int deletions;
+            synchronized (LOCK) {
+                deletions = getDeletions(job);
+            }
+            List<Record> records = new ArrayList<Record>();
+            // the oldest build that has to be read again under the lock
+            int recheck = Integer.MAX_VALUE;
+            for (Run<?, ?> b : job.getBuilds()) {
+                if (recheck == Integer.MAX_VALUE) {
+                    recheck = b.getNumber() + 1;
+                }
+                if (b.getResult() == null) {
+                    recheck = b.getNumber();
+                    continue;
+                }
+                Record r = toRecord(b);
+                if (r != null) {
+                    records.add(r);
+                }
+            }
+            Collections.reverse(records);
+            synchronized (LOCK) {
+                if (file.exists()) {
+                    return;
+                }
+                if (deletions != getDeletions(job)) {
+                    continue;
+                }
+                List<Record> recent = new ArrayList<Record>();
+                for (Run<?, ?> b = job.getLastBuild(); b != null && b.getNumber() >= recheck; b = b.getPreviousBuild()) {
+                    Record r = toRecord(b);
+                    if (r != null) {
+                        recent.add(r);
+                    }
+                }
+                while (!records.isEmpty() && records.get(records.size() - 1).number >= recheck) {
+                    records.remove(records.size() - 1);
+                }
+                Collections.reverse(recent);
+                records.addAll(recent);
+                writeAll(file, records);
+                return;
+            }
+        }
+    }
+
+    private static Record toRecord(Run<?, ?> build) {
+        CoberturaBuildAction action = build.getAction(CoberturaBuildAction.class);
+        // builds are still "building" while completion listeners run, so only the result is checked
+        if (action == null || build.getResult() == null) {
+            return null;
+        }
+        Map<CoverageMetric, Ratio> results;
+        CoverageSummary summary = action.getSummary();
+        if (summary != null && summary.size() > 0) {
+            results = summary.getResults(0);
+        } else {
+            // the project coverage the build kept, rather than parsing its report again
+            results = action.getResults();
+            if (results == null) {
+                return null;
+            }
+        }
+        return new Record(build.getNumber(), build.getTimeInMillis(), build.getResult(),
+                action.includeOnlyStable(), results);
+    }
+
+    /**
+     * Appends completed builds and compacts the trend file when builds get deleted.
+     *
+     * <p>
+     * Records are written once the build has completed rather than by the publisher, as the build result,
+     * which decides whether the build shows up on later charts, is only final then.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            File file = getFile(r.getParent());
+            // whether the file exists is only checked under the lock, see rebuild(Job)
+            Record record = toRecord(r);
+            if (record == null) {
+                return;
+            }
+            try {
+                append(file, record);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update " + file + ", it will be recreated", e);
+                file.delete();
+            } finally {
+                SERIES.remove(r.getParent());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            File file = getFile(r.getParent());
+            synchronized (LOCK) {
+                DELETIONS.put(r.getParent(), getDeletions(r.getParent()) + 1);
+            }
+            if (!file.exists()) {
+                return;
+            }
+            try {
+                remove(file, r.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update " + file + ", it will be recreated", e);
+                file.delete();
+            } finally {
+                SERIES.remove(r.getParent());
+            }
+        }
+    }
+}
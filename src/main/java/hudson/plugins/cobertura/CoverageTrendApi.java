@@ -0,0 +1,117 @@
+package hudson.plugins.cobertura;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageResult;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the coverage trend as JSON at {@code .../trend/api/json}, for charts drawn by the browser.
+ *
+ * <p>
+ * The response lists one {@code [build, timestamp, metric, numerator, denominator]} row per build and metric,
+ * newest build first, for the same builds {@link CoverageChart} would plot. Pages hold at most {@code limit}
+ * builds (default {@value #DEFAULT_LIMIT}, at most {@value #MAX_LIMIT}); {@code next} is the cursor to pass as
+ * {@code before} to get the next older page, and {@code since} only returns builds newer than the given number,
+ * so that a client can refresh incrementally.
+ */
+public class CoverageTrendApi {
+
+    static final int DEFAULT_LIMIT = 100;
+
+    static final int MAX_LIMIT = 1000;
+
+    private final Run<?, ?> head;
+
+    private final CoverageResult node;
+
+    /**
+     * Constructor.
+     *
+     * @param head the build the trend ends at
+     * @param node the element of that build's tree, or {@code null} for the project level trend
+     */
+    public CoverageTrendApi(Run<?, ?> head, CoverageResult node) {
+        this.head = head;
+        this.node = node;
+    }
+
+    /**
+     * Lets {@code trend/api/json} resolve to {@link #doJson(StaplerRequest, StaplerResponse)}.
+     *
+     * @return this object
+     */
+    public CoverageTrendApi getApi() {
+        return this;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Streams a page of the trend.
+     *
+     * @param req the stapler request
+     * @param rsp the stapler response
+     * @throws IOException if the response cannot be written
+     */
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int since = parseInt(req.getParameter("since"), 0);
+        int before = parseInt(req.getParameter("before"), Integer.MAX_VALUE);
+        int limit = Math.max(1, Math.min(MAX_LIMIT, parseInt(req.getParameter("limit"), DEFAULT_LIMIT)));
+
+        // one more than the page, to tell whether there is a next one
+        List<CoverageTrend.Record> page = CoverageTrend.read(head, since, before, limit + 1);
+        if (page == null) {
+            page = Collections.emptyList();
+        }
+        boolean more = page.size() > limit;
+        if (more) {
+            page = page.subList(0, limit);
+        }
+        if (node != null && !page.isEmpty()) {
+            int size = page.size();
+            page = CoverageNodeTrend.getPoints(head.getParent(), page, node);
+            if (page.size() < size) {
+                more = false; // the element does not exist before this
+            }
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        Writer w = rsp.getCompressedWriter(req);
+        try {
+            w.write("{\"build\":" + head.getNumber());
+            w.write(",\"columns\":[\"build\",\"timestamp\",\"metric\",\"numerator\",\"denominator\"],\"data\":[");
+            boolean first = true;
+            for (CoverageTrend.Record r : page) {
+                for (Map.Entry<CoverageMetric, Ratio> e : r.getResults().entrySet()) {
+                    w.write(first ? "[" : ",[");
+                    first = false;
+                    w.write(r.number + "," + r.timestamp + "," + JSONUtils.quote(e.getKey().getName()) + ","
+                            + e.getValue().numerator + "," + e.getValue().denominator + "]");
+                }
+            }
+            w.write("],\"next\":" + (more ? String.valueOf(page.get(page.size() - 1).number) : "null") + "}");
+        } finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package hudson.plugins.cobertura;
+
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.category.DefaultCategoryDataset;
+
+/**
+ * Reduces long trend series to a number of points a chart can actually show, using the
+ * largest-triangle-three-buckets algorithm: the first and last points are kept, and of every bucket in between
+ * the point that forms the largest triangle with the point kept before it and the average of the next bucket.
+ * That keeps the peaks and dips that make up the shape of the series.
+ */
+final class Downsampler {
+
+    /**
+     * Do not instantiate Downsampler.
+     */
+    private Downsampler() {
+    }
+
+    /**
+     * Selects the points of a series to keep.
+     *
+     * @param x         the x coordinates, ascending
+     * @param y         the y coordinates
+     * @param count     the number of points
+     * @param threshold the number of points to keep
+     * @return the indices of the kept points, ascending
+     */
+    static int[] lttb(double[] x, double[] y, int count, int threshold) {
+        return lttb(x, new double[][] {y}, count, threshold);
+    }
+
+    /**
+     * Selects the points to keep of several series that share their x coordinates, at most {@code threshold} of
+     * them for all series together. The triangle of a point is the sum of its triangles in each series, so a
+     * point that makes up the shape of any one series is kept.
+     *
+     * @param x         the x coordinates, ascending
+     * @param y         the y coordinates of each series, {@code NaN} where a series has no point
+     * @param count     the number of points
+     * @param threshold the number of points to keep
+     * @return the indices of the kept points, ascending
+     */
+    static int[] lttb(double[] x, double[][] y, int count, int threshold) {
+        if (threshold >= count || threshold < 3) {
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int[] sampled = new int[threshold];
+        int k = 0;
+        double every = (double) (count - 2) / (threshold - 2);
+        double[] avgY = new double[y.length];
+        int a = 0;
+        sampled[k++] = a;
+        for (int i = 0; i < threshold - 2; i++) {
+            int avgStart = (int) Math.floor((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((i + 2) * every) + 1, count);
+            double avgX = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += x[j];
+            }
+            avgX /= avgEnd - avgStart;
+            for (int r = 0; r < y.length; r++) {
+                double sum = 0;
+                int n = 0;
+                for (int j = avgStart; j < avgEnd; j++) {
+                    if (!Double.isNaN(y[r][j])) {
+                        sum += y[r][j];
+                        n++;
+                    }
+                }
+                avgY[r] = n == 0 ? Double.NaN : sum / n;
+            }
+
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = 0;
+                for (int r = 0; r < y.length; r++) {
+                    // NaN, and so left out, where the series misses one of the three points
+                    double triangle = Math.abs((x[a] - avgX) * (y[r][j] - y[r][a]) - (x[a] - x[j]) * (avgY[r] - y[r][a]));
+                    if (!Double.isNaN(triangle)) {
+                        area += triangle;
+                    }
+                }
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            sampled[k++] = next;
+            a = next;
+        }
+        sampled[k] = count - 1;
+        return sampled;
+    }
+
+    /**
+     * Downsamples all rows of a dataset at once, selecting the same columns for all of them so that the series
+     * stay aligned on the same builds and no more than {@code threshold} columns are kept.
+     *
+     * @param dataset   series by row, builds by column
+     * @param threshold the number of columns to keep
+     * @return the reduced dataset
+     */
+    static CategoryDataset downsample(CategoryDataset dataset, int threshold) {
+        int columns = dataset.getColumnCount();
+        int rows = dataset.getRowCount();
+        double[] x = new double[columns];
+        double[][] y = new double[rows][columns];
+        for (int col = 0; col < columns; col++) {
+            x[col] = col;
+            for (int row = 0; row < rows; row++) {
+                Number value = dataset.getValue(row, col);
+                y[row][col] = value == null ? Double.NaN : value.doubleValue();
+            }
+        }
+
+        int[] kept = lttb(x, y, columns, threshold);
+        DefaultCategoryDataset result = new DefaultCategoryDataset();
+        // the keys first, in their order, as a series missing from the first builds would otherwise come last
+        if (rows > 0 && kept.length > 0) {
+            for (int row = 0; row < rows; row++) {
+                result.addValue(null, dataset.getRowKey(row), dataset.getColumnKey(kept[0]));
+            }
+            for (int col : kept) {
+                result.addValue(null, dataset.getRowKey(0), dataset.getColumnKey(col));
+            }
+        }
+        for (int col : kept) {
+            for (int row = 0; row < rows; row++) {
+                Number value = dataset.getValue(row, col);
+                if (value != null) {
+                    result.addValue(value, dataset.getRowKey(row), dataset.getColumnKey(col));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.cobertura;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers, per job, which build {@link CoberturaProjectAction#getLastResult()} points at, so that job pages,
+ * list view columns and trend graphs do not walk back through the build history on every request.
+ * <p>
+ * Only build numbers are kept, never {@link Run} references, so the cache does not pin builds in memory.
+ * Entries are filled lazily and kept up to date by {@link RunListenerImpl} as builds complete or get deleted.
+ */
+final class LastResultCache {
+
+    /**
+     * Marker for "not computed yet".
+     */
+    private static final int UNKNOWN = -1;
+
+    /**
+     * Marker for "computed, but there is no qualifying build". Build numbers start at 1.
+     */
+    private static final int NONE = 0;
+
+    private static final Map<Job<?, ?>, Entry> CACHE = Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, Entry>());
+
+    /**
+     * Do not instantiate LastResultCache.
+     */
+    private LastResultCache() {
+    }
+
+    private static final class Entry {
+        private int stable = UNKNOWN;
+        private int nonStable = UNKNOWN;
+
+        synchronized int get(boolean onlyStable) {
+            return onlyStable ? stable : nonStable;
+        }
+
+        /**
+         * Stores a value computed by walking the history, unless a listener updated the entry in the meantime.
+         */
+        synchronized void resolve(boolean onlyStable, int number, int expected) {
+            if (get(onlyStable) == expected) {
+                set(onlyStable, number);
+            }
+        }
+
+        /**
+         * Moves the pointer forward to a newly completed build.
+         */
+        synchronized void advance(boolean onlyStable, int number) {
+            int current = get(onlyStable);
+            if (current != UNKNOWN && number > current) {
+                set(onlyStable, number);
+            }
+        }
+
+        synchronized void forget(int number) {
+            if (stable == number) {
+                stable = UNKNOWN;
+            }
+            if (nonStable == number) {
+                nonStable = UNKNOWN;
+            }
+        }
+
+        private void set(boolean onlyStable, int number) {
+            if (onlyStable) {
+                stable = number;
+            } else {
+                nonStable = number;
+            }
+        }
+    }
+
+    private static Entry entry(Job<?, ?> job) {
+        synchronized (CACHE) {
+            Entry e = CACHE.get(job);
+            if (e == null) {
+                e = new Entry();
+                CACHE.put(job, e);
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Gets the last build of the job that carries a {@link CoberturaBuildAction} which should be shown.
+     *
+     * @param job        the job
+     * @param onlyStable whether only stable builds are considered
+     * @return the build, or {@code null} if there is none
+     */
+    static Run<?, ?> getLastResultBuild(Job<?, ?> job, boolean onlyStable) {
+        Entry e = entry(job);
+        int number = e.get(onlyStable);
+        if (number == NONE) {
+            return null;
+        }
+        if (number != UNKNOWN) {
+            Run<?, ?> b = job.getBuildByNumber(number);
+            if (b != null && b.getAction(CoberturaBuildAction.class) != null) {
+                return b;
+            }
+        }
+        Run<?, ?> b = findLastResultBuild(job, onlyStable);
+        e.resolve(onlyStable, b == null ? NONE : b.getNumber(), number);
+        return b;
+    }
+
+    private static Run<?, ?> findLastResultBuild(Job<?, ?> job, boolean onlyStable) {
+        Run<?, ?> start = onlyStable ? job.getLastStableBuild() : job.getLastSuccessfulBuild();
+        for (Run<?, ?> b = start; b != null; b = BuildUtils.getPreviousNotFailedCompletedBuild(b)) {
+            if (b.getResult() == Result.FAILURE || (b.getResult() != Result.SUCCESS && onlyStable))
+                continue;
+            if (b.getAction(CoberturaBuildAction.class) != null)
+                return b;
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the cached pointers current.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            if (r.getAction(CoberturaBuildAction.class) == null) {
+                return;
+            }
+            Entry e = CACHE.get(r.getParent());
+            if (e == null) {
+                return;
+            }
+            Result result = r.getResult();
+            if (result == Result.SUCCESS) {
+                e.advance(true, r.getNumber());
+            }
+            if (result != null && result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                e.advance(false, r.getNumber());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            Entry e = CACHE.get(r.getParent());
+            if (e != null) {
+                e.forget(r.getNumber());
+            }
+        }
+    }
+}
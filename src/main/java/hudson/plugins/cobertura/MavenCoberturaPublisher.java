@@ -15,6 +15,7 @@ import hudson.model.Result;
 import hudson.plugins.cobertura.renderers.SourceCodePainter;
 import hudson.plugins.cobertura.renderers.SourceEncoding;
 import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoverageSummary;
 
 import java.io.File;
 import java.io.IOException;
@@ -268,7 +269,6 @@ public class MavenCoberturaPublisher extends MavenReporter {
 
     private static class MavenCoberturaActionAdder implements MavenBuildProxy.BuildCallable<Boolean, IOException> {
         private static final long serialVersionUID = -5470450037371279762L;
-        @SuppressWarnings("unused")
         private final BuildListener listener;
 
         public MavenCoberturaActionAdder(BuildListener listener) {
@@ -282,6 +282,16 @@ public class MavenCoberturaPublisher extends MavenReporter {
                     File cvgxml = new File(build.getRootDir(), "coverage.xml");
                     CoverageResult result = CoberturaCoverageParser.parse(cvgxml, null, new HashSet<String>());
                     result.setOwner(build);
+                    try {
+                        CoverageSummary.write(result, new File(build.getRootDir(), CoverageSummary.FILE_NAME));
+                    } catch (IOException e) {
+                        e.printStackTrace(listener.error("Unable to write coverage summary"));
+                    }
+                    try {
+                        CoverageNodeTrend.append(build, result);
+                    } catch (IOException e) {
+                        e.printStackTrace(listener.error("Unable to update the coverage node index"));
+                    }
 
                     CoberturaBuildAction o = CoberturaBuildAction.load(result, null, null, false, false, false, false, false, false, 0);
                     build.addAction(o);
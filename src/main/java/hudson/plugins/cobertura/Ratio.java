@@ -42,7 +42,13 @@ final public class Ratio implements Serializable {
      * @return percentage
      */
     public int getPercentage() {
-        float floatPercentage = getPercentageFloat();
+        return percentage(getPercentageFloat());
+    }
+
+    /**
+     * Rounds a percentage like {@link #getPercentage()} does. The result never decreases as the argument grows.
+     */
+    static int percentage(float floatPercentage) {
         int intPercentage = Math.round(floatPercentage);
         if (intPercentage == 100 && (int) floatPercentage < 100) {
             return (int) floatPercentage;
@@ -59,6 +65,13 @@ final public class Ratio implements Serializable {
      * @return percentage
      */
     public float getPercentageFloat() {
+        return percentageFloat(numerator, denominator);
+    }
+
+    /**
+     * Computes {@link #getPercentageFloat()} without creating a {@link Ratio}.
+     */
+    static float percentageFloat(float numerator, float denominator) {
         return denominator == 0 ? (numerator == 0 ? 100.0f : 0.0f) : (100 * numerator / denominator);
     }
 
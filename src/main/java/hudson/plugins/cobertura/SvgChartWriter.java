@@ -0,0 +1,180 @@
+package hudson.plugins.cobertura;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jfree.data.category.CategoryDataset;
+
+/**
+ * Writes the coverage trend line chart as SVG, straight from the dataset to a stream.
+ *
+ * <p>
+ * Unlike {@link CoverageChart#createChart()}, this needs neither AWT nor fonts on the controller, and builds no
+ * object graph: the layout mirrors the JFreeChart one (integer percentage axis on the left, one category per
+ * build with vertical labels, legend at the bottom), and text is laid out by the browser.
+ */
+public final class SvgChartWriter {
+
+    /**
+     * Same colors, in the same order, as {@code hudson.util.ColorPalette.LINE_GRAPH}, followed by more of the
+     * Tango palette for charts with many series.
+     */
+    private static final String[] COLORS = {"#cc0000", "#3465a4", "#73d216", "#edd400",
+            "#75507b", "#f57900", "#c17d11", "#555753", "#ef2929", "#729fcf", "#8ae234", "#ad7fa8"};
+
+    private static final int LEFT = 32;
+
+    private static final int TOP = 5;
+
+    private static final int RIGHT = 5;
+
+    private static final int LABELS = 40;
+
+    private static final int LEGEND_LINE = 14;
+
+    /**
+     * Do not instantiate SvgChartWriter.
+     */
+    private SvgChartWriter() {
+    }
+
+    /**
+     * Writes the chart.
+     *
+     * @param dataset    series by row, builds by column
+     * @param lowerBound lower bound of the percentage axis
+     * @param upperBound upper bound of the percentage axis
+     * @param width      width of the image
+     * @param height     height of the image
+     * @param out        where to write to
+     * @throws IOException if writing fails
+     */
+    public static void write(CategoryDataset dataset, int lowerBound, int upperBound, int width, int height, Writer out)
+            throws IOException {
+        int plotWidth = Math.max(1, width - LEFT - RIGHT);
+        int legendLines = 1;
+        for (int row = 0, x = LEFT; row < dataset.getRowCount(); row++) {
+            int w = legendWidth(dataset, row);
+            if (x > LEFT && x + w > width) {
+                legendLines++;
+                x = LEFT;
+            }
+            x += w;
+        }
+        int plotHeight = Math.max(1, height - TOP - LABELS - legendLines * LEGEND_LINE - 4);
+        int plotBottom = TOP + plotHeight;
+        double range = Math.max(1, upperBound - lowerBound);
+
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" viewBox=\"0 0 " + width + ' ' + height + "\" font-family=\"sans-serif\" font-size=\"10\">");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>");
+
+        // range axis, integer ticks
+        int step = tickUnit(upperBound - lowerBound);
+        out.write("<g stroke=\"black\" stroke-width=\"0.5\">");
+        for (int tick = (int) Math.ceil(lowerBound / (double) step) * step; tick <= upperBound; tick += step) {
+            double y = plotBottom - (tick - lowerBound) * plotHeight / range;
+            out.write("<line x1=\"" + LEFT + "\" x2=\"" + (LEFT + plotWidth) + "\" y1=\"" + round(y) + "\" y2=\""
+                    + round(y) + "\"/>");
+        }
+        out.write("</g><g text-anchor=\"end\">");
+        for (int tick = (int) Math.ceil(lowerBound / (double) step) * step; tick <= upperBound; tick += step) {
+            double y = plotBottom - (tick - lowerBound) * plotHeight / range;
+            out.write("<text x=\"" + (LEFT - 3) + "\" y=\"" + round(y + 3) + "\">" + tick + "</text>");
+        }
+        out.write("</g>");
+
+        // one category per build, points in the middle of the category like ShiftedCategoryAxis does
+        int columns = dataset.getColumnCount();
+        double category = columns == 0 ? plotWidth : plotWidth / (double) columns;
+        int labelEvery = Math.max(1, (int) Math.ceil(12 / category));
+        out.write("<g>");
+        for (int col = 0; col < columns; col += labelEvery) {
+            double x = LEFT + (col + 0.5) * category;
+            out.write("<text transform=\"translate(" + round(x + 3) + ',' + (plotBottom + 3)
+                    + ") rotate(-90)\" text-anchor=\"end\">" + escape(String.valueOf(dataset.getColumnKey(col)))
+                    + "</text>");
+        }
+        out.write("</g>");
+
+        for (int row = 0; row < dataset.getRowCount(); row++) {
+            String color = COLORS[row % COLORS.length];
+            out.write("<polyline fill=\"none\" stroke-width=\"1.5\" stroke=\"" + color + "\" points=\"");
+            for (int col = 0; col < columns; col++) {
+                Number value = dataset.getValue(row, col);
+                if (value == null) {
+                    continue;
+                }
+                double x = LEFT + (col + 0.5) * category;
+                double y = plotBottom - (value.doubleValue() - lowerBound) * plotHeight / range;
+                out.write(round(x) + "," + round(y) + ' ');
+            }
+            out.write("\"/>");
+        }
+
+        // legend, wrapped like JFreeChart does when the series do not fit on one line
+        int legendY = height - 5 - (legendLines - 1) * LEGEND_LINE;
+        int x = LEFT;
+        for (int row = 0; row < dataset.getRowCount(); row++) {
+            String name = String.valueOf(dataset.getRowKey(row));
+            int w = legendWidth(dataset, row);
+            if (x > LEFT && x + w > width) {
+                legendY += LEGEND_LINE;
+                x = LEFT;
+            }
+            out.write("<line x1=\"" + x + "\" x2=\"" + (x + 12) + "\" y1=\"" + (legendY - 3) + "\" y2=\""
+                    + (legendY - 3) + "\" stroke-width=\"1.5\" stroke=\"" + COLORS[row % COLORS.length] + "\"/>");
+            out.write("<text x=\"" + (x + 15) + "\" y=\"" + legendY + "\">" + escape(name) + "</text>");
+            x += w;
+        }
+        out.write("</svg>");
+    }
+
+    /**
+     * Estimated width of a legend item; the actual text is measured by the browser.
+     */
+    private static int legendWidth(CategoryDataset dataset, int row) {
+        return 25 + 6 * String.valueOf(dataset.getRowKey(row)).length();
+    }
+
+    /**
+     * Picks an integer tick unit that gives at most ten ticks, like {@code NumberAxis.createIntegerTickUnits()}.
+     */
+    static int tickUnit(int range) {
+        int[] units = {1, 2, 5, 10, 20, 25, 50, 100};
+        for (int unit : units) {
+            if (range / unit <= 10) {
+                return unit;
+            }
+        }
+        return 100;
+    }
+
+    private static String round(double v) {
+        return String.valueOf(Math.round(v * 10) / 10.0);
+    }
+
+    static String escape(String text) {
+        StringBuilder buf = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '<':
+                buf.append("&lt;");
+                break;
+            case '>':
+                buf.append("&gt;");
+                break;
+            case '&':
+                buf.append("&amp;");
+                break;
+            case '"':
+                buf.append("&quot;");
+                break;
+            default:
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
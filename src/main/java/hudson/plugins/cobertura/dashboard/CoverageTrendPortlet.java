@@ -0,0 +1,173 @@
+package hudson.plugins.cobertura.dashboard;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.plugins.cobertura.CoverageTrend;
+import hudson.plugins.cobertura.Ratio;
+import hudson.plugins.cobertura.SvgChartWriter;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.view.dashboard.DashboardPortlet;
+import hudson.util.ListBoxModel;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Plots one coverage metric of all jobs of the dashboard over the last days, one line per job.
+ *
+ * <p>
+ * The series come from {@link CoverageTrend#getSeries(Job)}, which reads each job's trend file once and keeps it
+ * until a build of the job completes, so the chart costs one pass over each cached series and no build gets
+ * loaded. The trend file holds the project level results each {@link hudson.plugins.cobertura.CoberturaBuildAction}
+ * persists, written as the build completes, so it has the same values as the builds without loading them. Each
+ * job's value for a day is the coverage of its last not failed build up to that day.
+ */
+public class CoverageTrendPortlet extends DashboardPortlet {
+
+    private static final int WIDTH = 500;
+
+    private static final int HEIGHT = 250;
+
+    private final String metric;
+
+    private final int daysToShow;
+
+    @DataBoundConstructor
+    public CoverageTrendPortlet(String name, String metric, int daysToShow) {
+        super(name);
+        this.metric = metric;
+        this.daysToShow = daysToShow;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public int getDaysToShow() {
+        return daysToShow;
+    }
+
+    private CoverageMetric getCoverageMetric() {
+        try {
+            return metric == null ? CoverageMetric.LINE : CoverageMetric.valueOf(metric);
+        } catch (IllegalArgumentException e) {
+            return CoverageMetric.LINE;
+        }
+    }
+
+    private int getDays() {
+        return daysToShow <= 0 ? 30 : Math.min(daysToShow, 365);
+    }
+
+    /**
+     * Gets the chart as inline SVG.
+     *
+     * @return the SVG document, or {@code null} if none of the jobs has coverage in the period shown
+     * @throws IOException never, the chart is written to memory
+     */
+    public String getTrendSvg() throws IOException {
+        Map<String, List<CoverageTrend.Record>> series = new LinkedHashMap<String, List<CoverageTrend.Record>>();
+        for (Job<?, ?> job : getDashboard().getJobs()) {
+            series.put(job.getFullDisplayName(), CoverageTrend.getSeries(job));
+        }
+        DefaultCategoryDataset dataset = createDataset(series, getCoverageMetric(), getDays(), Calendar.getInstance());
+        if (dataset.getRowCount() == 0) {
+            return null;
+        }
+        int min = 100;
+        int max = 0;
+        for (int row = 0; row < dataset.getRowCount(); row++) {
+            for (int column = 0; column < dataset.getColumnCount(); column++) {
+                Number value = dataset.getValue(row, column);
+                if (value != null) {
+                    min = Math.min(min, (int) value.floatValue());
+                    max = Math.max(max, (int) value.floatValue());
+                }
+            }
+        }
+        StringWriter out = new StringWriter();
+        SvgChartWriter.write(dataset, Math.max(0, min - 1), Math.min(100, max + 1), WIDTH, HEIGHT, out);
+        return out.toString();
+    }
+
+    /**
+     * Plots a metric of the given series, one row per job and one column per day.
+     *
+     * @param series the points of each job, oldest first, by name
+     * @param metric the metric
+     * @param days   the number of days, the last one being today
+     * @param now    the current time
+     * @return the dataset, without the jobs that have no coverage in the period shown
+     */
+    static DefaultCategoryDataset createDataset(Map<String, List<CoverageTrend.Record>> series, CoverageMetric metric,
+            int days, Calendar now) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        Calendar day = (Calendar) now.clone();
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        day.add(Calendar.DAY_OF_MONTH, 1 - days);
+        String[] labels = new String[days];
+        long[] ends = new long[days];
+        for (int i = 0; i < days; i++) {
+            labels[i] = format.format(day.getTime());
+            day.add(Calendar.DAY_OF_MONTH, 1);
+            ends[i] = day.getTimeInMillis();
+        }
+
+        DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        for (Map.Entry<String, List<CoverageTrend.Record>> job : series.entrySet()) {
+            List<CoverageTrend.Record> points = job.getValue();
+            int next = 0;
+            Ratio value = null;
+            for (int i = 0; i < days; i++) {
+                while (next < points.size() && points.get(next).timestamp < ends[i]) {
+                    Ratio r = points.get(next++).getResults().get(metric);
+                    if (r != null) {
+                        value = r;
+                    }
+                }
+                if (value != null) {
+                    dataset.addValue(value.getPercentageFloat(), job.getKey(), labels[i]);
+                }
+            }
+        }
+        return dataset;
+    }
+
+    public static class DescriptorImpl extends Descriptor<DashboardPortlet> {
+
+        @Extension(optional = true)
+        public static DescriptorImpl newInstance() {
+            if (Hudson.getInstance().getPlugin("dashboard-view") != null) {
+                return new DescriptorImpl();
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Code Coverage Trend(Cobertura)";
+        }
+
+        public ListBoxModel doFillMetricItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (CoverageMetric m : CoverageMetric.values()) {
+                items.add(m.getName(), m.name());
+            }
+            return items;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package hudson.plugins.cobertura.renderers;
+
+import static hudson.plugins.cobertura.IOUtils.closeQuietly;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of painted sources, so that every retained build can show its sources and not only the
+ * last successful one.
+ *
+ * <p>
+ * {@link SourceCodePainter} keeps the sources of the latest painting in {@code <job>/cobertura/}. Once a build has
+ * painted them, each file is also filed under {@code <job>/}{@value #BLOBS}{@code /} by a hash of what it was
+ * painted from: the digests of the source and of its coverage, the encoding and the mode, all taken from the
+ * manifest of the painter. The build lists which blob holds which source in {@value #FILE_NAME}. A source that did
+ * not change since an earlier build is not stored again, so each build only costs the files that changed, and a blob
+ * is a hard link to the painted file where the file system allows it. The job counts how many sources of its builds
+ * refer to each blob in {@value #REFERENCES}, and blobs are removed as soon as no build refers to them any more.
+ */
+public final class PaintedSourceStore {
+
+    /**
+     * Name of the per-build file that maps the relative path of each painted source to its blob.
+     */
+    public static final String FILE_NAME = "cobertura-sources.txt";
+
+    /**
+     * Name of the per-job directory holding the blobs, in subdirectories named after the first two characters of the
+     * hash.
+     */
+    static final String BLOBS = "cobertura-sources";
+
+    /**
+     * Name of the file in {@value #BLOBS} that counts the references of the builds to each blob.
+     */
+    static final String REFERENCES = "references.txt";
+
+    private static final String HEADER = "# painted source store 1";
+
+    private static final String REFERENCES_HEADER = "# painted source references 1";
+
+    /**
+     * Serializes recording and sweeping per job, keyed by the job directory.
+     */
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+    /**
+     * Build manifests read recently; they do not change once written.
+     */
+    private static final Map<File, Map<String, String>> MANIFESTS = new LinkedHashMap<File, Map<String, String>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Map<String, String>> eldest) {
+            return size() > 16;
+        }
+    };
+
+    /**
+     * Do not instantiate PaintedSourceStore.
+     */
+    private PaintedSourceStore() {
+    }
+
+    /**
+     * Files the sources the painter just painted for the given build, and records them for it. Recording and sweeping
+     * do not run at the same time for a job, so that a blob is never removed while a build is about to refer to it.
+     *
+     * @param build    the build the sources were painted for
+     * @param painted  where the painter painted them to
+     * @param listener for reporting to the build log
+     * @throws IOException if the store cannot be written
+     */
+    public static void record(Run<?, ?> build, File painted, TaskListener listener) throws IOException {
+        File manifest = new File(painted, SourceCodePainter.MANIFEST);
+        if (!manifest.exists()) {
+            return;
+        }
+        String header;
+        Map<String, String> blobs = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            header = in.readLine();
+            if (header == null || !header.startsWith(SourceCodePainter.MANIFEST_HEADER)) {
+                return;
+            }
+            String suffix = header.endsWith(" raw") ? SourceCodePainter.RAW_SOURCE_SUFFIX : SourceCodePainter.PAINTED_SOURCE_SUFFIX;
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    // the painted file only depends on what the manifest says it was painted from
+                    blobs.put(line.substring(0, tab), Util.getDigestOf(header + '\n' + line.substring(tab + 1))
+                            + (line.endsWith(SourceCodePainter.SUMMARY) ? SourceCodePainter.PAINTED_SOURCE_SUFFIX : suffix));
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        Job<?, ?> job = build.getParent();
+        synchronized (getLock(job)) {
+            File dir = new File(job.getRootDir(), BLOBS);
+            Map<String, Integer> references = readReferences(job, dir);
+            int stored = 0;
+            for (Iterator<Map.Entry<String, String>> it = blobs.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, String> entry = it.next();
+                File blob = getBlob(dir, entry.getValue());
+                if (blob.exists()) {
+                    continue;
+                }
+                String name = entry.getValue();
+                File source = new File(painted, entry.getKey() + name.substring(name.indexOf('.')));
+                if (!source.isFile()) {
+                    // neither listed nor counted, so that the build does not refer to a blob that does not exist
+                    it.remove();
+                    continue;
+                }
+                blob.getParentFile().mkdirs();
+                File tmp = new File(blob.getPath() + ".tmp");
+                tmp.delete();
+                link(source, tmp);
+                if (!tmp.renameTo(blob)) {
+                    tmp.delete();
+                    throw new IOException("Failed to store " + blob);
+                }
+                stored++;
+            }
+
+            // counted before the build refers to them, so that a failure in between only leaves blobs behind
+            File file = new File(build.getRootDir(), FILE_NAME);
+            for (String blob : blobs.values()) {
+                count(references, blob, 1);
+            }
+            Collection<String> replaced = read(file).values();
+            for (String blob : replaced) {
+                count(references, blob, -1);
+            }
+            writeReferences(dir, references);
+            write(file, blobs);
+            synchronized (MANIFESTS) {
+                MANIFESTS.remove(file);
+            }
+            removeUnreferenced(dir, replaced, references);
+            listener.getLogger().println("Stored " + stored + " of " + blobs.size()
+                    + " painted source files for this build, the others were stored for earlier builds");
+        }
+    }
+
+    private static Object getLock(Job<?, ?> job) {
+        Object lock = new Object();
+        Object existing = LOCKS.putIfAbsent(job.getRootDir(), lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * Links the painted file into the store, or copies it where hard links are not supported. The painter writes new
+     * files rather than overwriting them, so the blob keeps its content when the file gets painted again.
+     */
+    private static void link(File source, File blob) throws IOException {
+        try {
+            Files.createLink(blob.toPath(), source.toPath());
+            return;
+        } catch (UnsupportedOperationException e) {
+            // copied below
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to link " + blob + " to " + source + ", copying it", e);
+        }
+        Util.copyFile(source, blob);
+    }
+
+    private static void count(Map<String, Integer> references, String blob, int delta) {
+        Integer count = references.get(blob);
+        int updated = (count == null ? 0 : count) + delta;
+        if (updated > 0) {
+            references.put(blob, updated);
+        } else {
+            references.remove(blob);
+        }
+    }
+
+    private static File getBlob(File dir, String name) {
+        return new File(dir, name.substring(0, 2) + File.separator + name);
+    }
+
+    private static void write(File file, Map<String, String> blobs) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(HEADER);
+            out.write('\n');
+            for (Map.Entry<String, String> entry : blobs.entrySet()) {
+                out.write(entry.getKey());
+                out.write('\t');
+                out.write(entry.getValue());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Whether the sources of the given build were recorded. Builds from before the store only have the sources of the
+     * latest painting.
+     */
+    public static boolean isRecorded(Run<?, ?> build) {
+        return new File(build.getRootDir(), FILE_NAME).exists();
+    }
+
+    /**
+     * Finds the painted source of a build.
+     *
+     * @param build the build
+     * @param path  the relative path of the source
+     * @return the painted or raw source, see {@link SourceCodePainter#PAINTED_SOURCE_SUFFIX} and
+     *         {@link SourceCodePainter#RAW_SOURCE_SUFFIX}, or {@code null} if the build has none for that path
+     */
+    public static File find(Run<?, ?> build, String path) {
+        String name;
+        try {
+            name = read(new File(build.getRootDir(), FILE_NAME)).get(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the painted sources of " + build, e);
+            return null;
+        }
+        if (name == null) {
+            return null;
+        }
+        File blob = getBlob(new File(build.getParent().getRootDir(), BLOBS), name);
+        return blob.exists() ? blob : null;
+    }
+
+    private static Map<String, String> read(File file) throws IOException {
+        synchronized (MANIFESTS) {
+            Map<String, String> cached = MANIFESTS.get(file);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> blobs = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(in.readLine())) {
+                return Collections.emptyMap();
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    blobs.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        synchronized (MANIFESTS) {
+            MANIFESTS.put(file, blobs);
+        }
+        return blobs;
+    }
+
+    /**
+     * Reads the reference counts of the blobs of a job. Stores from before they were counted get them counted from
+     * the manifests of all the builds once, and lose the blobs that no build refers to.
+     */
+    private static Map<String, Integer> readReferences(Job<?, ?> job, File dir) throws IOException {
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        File file = new File(dir, REFERENCES);
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (REFERENCES_HEADER.equals(in.readLine())) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        int tab = line.indexOf('\t');
+                        if (tab > 0) {
+                            references.put(line.substring(0, tab), Integer.valueOf(line.substring(tab + 1)));
+                        }
+                    }
+                    return references;
+                }
+            } catch (NumberFormatException e) {
+                references.clear();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        File[] builds = job.getBuildDir().listFiles();
+        if (builds != null) {
+            for (File build : builds) {
+                // the permalinks are symbolic links to build directories listed anyway
+                if (build.getName().matches("\\d+")) {
+                    for (String blob : read(new File(build, FILE_NAME)).values()) {
+                        count(references, blob, 1);
+                    }
+                }
+            }
+        }
+        File[] buckets = dir.listFiles();
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] blobs = bucket.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    if (!references.containsKey(blob.getName())) {
+                        blob.delete();
+                    }
+                }
+                bucket.delete(); // only goes if it is empty
+            }
+        }
+        return references;
+    }
+
+    private static void writeReferences(File dir, Map<String, Integer> references) throws IOException {
+        dir.mkdirs();
+        File file = new File(dir, REFERENCES);
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.write(REFERENCES_HEADER);
+            out.write('\n');
+            for (Map.Entry<String, Integer> entry : references.entrySet()) {
+                out.write(entry.getKey());
+                out.write('\t');
+                out.write(entry.getValue().toString());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Removes those of the given blobs that are not referred to any more.
+     *
+     * @return the number of blobs removed
+     */
+    private static int removeUnreferenced(File dir, Collection<String> blobs, Map<String, Integer> references) {
+        int removed = 0;
+        for (String name : new HashSet<String>(blobs)) {
+            if (!references.containsKey(name)) {
+                File blob = getBlob(dir, name);
+                if (blob.delete()) {
+                    removed++;
+                }
+                blob.getParentFile().delete(); // only goes if it is empty
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drops the references of a build that is being deleted, and removes the blobs no other build refers to.
+     *
+     * @param job     the job
+     * @param deleted the build being deleted
+     * @return the number of blobs removed
+     * @throws IOException if the reference counts cannot be read or written
+     */
+    static int sweep(Job<?, ?> job, Run<?, ?> deleted) throws IOException {
+        File dir = new File(job.getRootDir(), BLOBS);
+        if (!dir.isDirectory()) {
+            return 0;
+        }
+        synchronized (getLock(job)) {
+            File file = new File(deleted.getRootDir(), FILE_NAME);
+            Map<String, Integer> references = readReferences(job, dir);
+            Collection<String> released = read(file).values();
+            for (String blob : released) {
+                count(references, blob, -1);
+            }
+            writeReferences(dir, references);
+            synchronized (MANIFESTS) {
+                MANIFESTS.remove(file);
+            }
+            return removeUnreferenced(dir, released, references);
+        }
+    }
+
+    /**
+     * Removes the blobs of deleted builds that no other build shares.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            if (!isRecorded(r)) {
+                return;
+            }
+            try {
+                sweep(r.getParent(), r);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove the painted sources of " + r, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PaintedSourceStore.class.getName());
+}
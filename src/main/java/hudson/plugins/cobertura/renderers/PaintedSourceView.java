@@ -0,0 +1,181 @@
+package hudson.plugins.cobertura.renderers;
+
+import static hudson.plugins.cobertura.IOUtils.closeQuietly;
+
+import hudson.plugins.cobertura.targets.CoveragePaint;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * One page of painted source code, rendered when it is viewed from the compressed raw source that
+ * {@link SourceCodePainter} keeps in raw mode and the coverage paint of the build.
+ *
+ * <p>
+ * Long files are split into pages of {@link #PAGE_SIZE} lines. Recently viewed pages are kept, up to
+ * {@link #CACHE_SIZE} characters of markup. Other ranges of lines, of raw or of painted sources, are streamed
+ * without holding more than a line at a time, see {@link #renderRows} and {@link #copyRows}.
+ */
+public final class PaintedSourceView {
+
+    /**
+     * Number of lines per page.
+     */
+    public static int PAGE_SIZE = Integer.getInteger(PaintedSourceView.class.getName() + ".pageSize", 2000);
+
+    /**
+     * Maximum number of characters of rendered markup kept in memory.
+     */
+    public static long CACHE_SIZE = Long.getLong(PaintedSourceView.class.getName() + ".cacheSize", 4L * 1024 * 1024);
+
+    private static final Map<String, PaintedSourceView> CACHE =
+            new LinkedHashMap<String, PaintedSourceView>(16, 0.75f, true);
+
+    private static long cachedChars;
+
+    private final String html;
+
+    private final int page;
+
+    private PaintedSourceView(String html, int page) {
+        this.html = html;
+        this.page = page;
+    }
+
+    /**
+     * Renders a page of a raw source. Only the source up to the end of the page is read.
+     *
+     * @param raw     the compressed raw source, UTF-8
+     * @param paint   the coverage of the file
+     * @param paintId identifies the paint, which does not change once the build is done
+     * @param page    the page, starting at 1
+     * @return the view, without rows if the source ends before the page
+     * @throws IOException if the source cannot be read
+     */
+    public static PaintedSourceView render(File raw, CoveragePaint paint, String paintId, int page) throws IOException {
+        page = Math.max(1, page);
+        String key = raw.getPath() + '@' + raw.lastModified() + '/' + paintId + '#' + page;
+        synchronized (CACHE) {
+            PaintedSourceView cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        int pageSize = getPageSize();
+        StringWriter out = new StringWriter();
+        renderRows(raw, paint, out, (page - 1) * pageSize + 1, page * pageSize);
+        PaintedSourceView view = new PaintedSourceView(out.toString(), page);
+        put(key, view);
+        return view;
+    }
+
+    /**
+     * Gets the number of lines per page, at least 1.
+     */
+    public static int getPageSize() {
+        return Math.max(1, PAGE_SIZE);
+    }
+
+    /**
+     * Renders a range of lines of a raw source straight to the given writer.
+     *
+     * @param raw   the compressed raw source, UTF-8
+     * @param paint the coverage of the file
+     * @param out   where to write the rows to
+     * @param from  the first line, starting at 1
+     * @param to    the last line, included
+     * @return the number of rows written
+     * @throws IOException if the source cannot be read or the rows cannot be written
+     */
+    public static int renderRows(File raw, CoveragePaint paint, Writer out, int from, int to) throws IOException {
+        int line = 0;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(raw)), "UTF-8"));
+            SourceLineRenderer renderer = new SourceLineRenderer(out, paint);
+            String content;
+            while (line < to && (content = in.readLine()) != null) {
+                line++;
+                if (line >= from && line <= to) {
+                    renderer.render(line, content);
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        return Math.max(0, line - Math.max(1, from) + 1);
+    }
+
+    /**
+     * Copies the rows of a range of lines of a source painted at build time, a line of markup at a time. Each row
+     * ends with a line of its own that closes it, as source code never contains an unescaped {@code <}.
+     *
+     * @param painted the painted source
+     * @param out     where to write the rows to
+     * @param from    the first line, starting at 1
+     * @param to      the last line, included
+     * @return the number of rows written
+     * @throws IOException if the source cannot be read or the rows cannot be written
+     */
+    public static int copyRows(Reader painted, Writer out, int from, int to) throws IOException {
+        BufferedReader in = new BufferedReader(painted);
+        int row = 1;
+        int copied = 0;
+        String markup;
+        while (row <= to && (markup = in.readLine()) != null) {
+            if (row >= from) {
+                out.write(markup);
+                out.write('\n');
+            }
+            if (ROW_END.equals(markup)) {
+                if (row >= from) {
+                    copied++;
+                }
+                row++;
+            }
+        }
+        return copied;
+    }
+
+    private static final String ROW_END = "</tr>";
+
+    private static void put(String key, PaintedSourceView view) {
+        if (view.html.length() > CACHE_SIZE) {
+            return;
+        }
+        synchronized (CACHE) {
+            PaintedSourceView old = CACHE.put(key, view);
+            cachedChars += view.html.length() - (old == null ? 0 : old.html.length());
+            Iterator<PaintedSourceView> it = CACHE.values().iterator();
+            while (cachedChars > CACHE_SIZE && it.hasNext()) {
+                cachedChars -= it.next().html.length();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the rows of the painted source table.
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * Gets the number of this page, starting at 1.
+     */
+    public int getPage() {
+        return page;
+    }
+}
@@ -3,24 +3,51 @@ package hudson.plugins.cobertura.renderers;
 import static hudson.plugins.cobertura.IOUtils.closeQuietly;
 
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.TaskListener;
 import hudson.plugins.cobertura.targets.CoveragePaint;
+import hudson.remoting.Pipe;
 import hudson.remoting.VirtualChannel;
 import jenkins.MasterToSlaveFileCallable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 
 /**
  * TODO javadoc.
@@ -40,6 +67,94 @@ public class SourceCodePainter extends MasterToSlaveFileCallable<Boolean> implem
 
     private final SourceEncoding sourceEncoding;
 
+    /**
+     * Maximum number of files painted at the same time on the agent, which paints one per processor by default;
+     * 0 for no other limit. Read on the controller when the painter is created, so it is configured there.
+     */
+    private final int threads;
+
+    /**
+     * Where the agent streams the painted sources to as a zip archive, or {@code null} to write each file to
+     * {@link #destination} on its own.
+     */
+    private Pipe archive;
+
+    /**
+     * The manifest of the previous painting, path to {@code sourceDigest\tpaintDigest}, without the files whose
+     * output is gone. Read where the destination is before painting, so that it goes to the agent with the painter.
+     */
+    private Map<String, String> previous;
+
+    /**
+     * The manifest of this painting, built up while painting.
+     */
+    private transient Map<String, String> painted;
+
+    private transient AtomicInteger reused;
+
+    /**
+     * Name of the manifest kept among the painted sources. It lists the digests of the source and of the paint of
+     * each file, so that files for which both are unchanged are not painted again.
+     */
+    static final String MANIFEST = ".cobertura-manifest";
+
+    /**
+     * Number of the sources that could not be found listed in the build log.
+     */
+    private static final int MAX_UNRESOLVED_REPORTED = 10;
+
+    static final String MANIFEST_HEADER = "# painted sources 2 ";
+
+    /**
+     * Suffix of the painted sources, which are stored gzipped and in UTF-8.
+     */
+    public static final String PAINTED_SOURCE_SUFFIX = ".html.gz";
+
+    /**
+     * Suffix of the files written in raw mode, see {@link #setRawSource(boolean)}.
+     */
+    public static final String RAW_SOURCE_SUFFIX = ".src.gz";
+
+    private boolean rawSource;
+
+    /**
+     * Comma separated Ant patterns of the sources not to paint, relative like the paths of the sources.
+     */
+    private String excludes;
+
+    /**
+     * Size in bytes above which a source only gets a summary instead of being painted; 0 for no limit.
+     */
+    private long maxFileSize;
+
+    /**
+     * Size in bytes of all the sources painted for a build, above which the remaining ones only get a summary; 0 for
+     * no limit.
+     */
+    private long maxTotalSize;
+
+    /**
+     * The sources that only get a summary; set while painting.
+     */
+    private transient Set<String> summarized;
+
+    /**
+     * Marks the sources that only got a summary in the manifest, so that they are painted again once within the
+     * limits.
+     */
+    static final String SUMMARY = "\tsummary";
+
+    /**
+     * Number of ranges of uncovered lines listed in the summary of a source that is not painted.
+     */
+    private static final int MAX_SUMMARY_RANGES = 1000;
+
+    /**
+     * Size of a source above which what is painted from it waits for its turn to go into the archive in a temporary
+     * file rather than in memory.
+     */
+    private static final long MAX_BUFFERED_SOURCE = 256 * 1024;
+
     public SourceCodePainter(FilePath destination, Set<String> sourcePaths, Map<String, CoveragePaint> paint, TaskListener listener,
             SourceEncoding sourceEncoding) {
         this.destination = destination;
@@ -47,11 +162,67 @@ public class SourceCodePainter extends MasterToSlaveFileCallable<Boolean> implem
         this.paint = paint;
         this.listener = listener;
         this.sourceEncoding = sourceEncoding;
+        this.threads = Integer.getInteger(SourceCodePainter.class.getName() + ".threads", 0);
+    }
+
+    /**
+     * Switches to raw mode, in which only the source is kept, gzipped and in UTF-8, next to where the painted
+     * source would go plus {@link #RAW_SOURCE_SUFFIX}. It is painted when viewed, see {@link PaintedSourceView}.
+     *
+     * @param rawSource whether to keep raw sources instead of painting them
+     */
+    public void setRawSource(boolean rawSource) {
+        this.rawSource = rawSource;
+    }
+
+    /**
+     * Leaves out the sources that match the given patterns: they are not painted, and do not get a summary either.
+     * Meant for generated sources nobody reads.
+     *
+     * @param excludes comma separated Ant patterns, relative like the paths of the sources; may be {@code null}
+     */
+    public void setExcludes(String excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * Limits the size of the painted sources. Sources above the limits are not painted, they get a summary listing
+     * their uncovered lines instead.
+     *
+     * @param maxFileSize  size in bytes of a source above which it is not painted; 0 for no limit
+     * @param maxTotalSize size in bytes of all the sources of the build; 0 for no limit. Sources are taken in the
+     *                     order of their paths, and those that no longer fit in what is left are not painted
+     */
+    public void setSizeLimits(long maxFileSize, long maxTotalSize) {
+        this.maxFileSize = maxFileSize;
+        this.maxTotalSize = maxTotalSize;
     }
 
     public void paintSourceCode(File source, CoveragePaint paint, FilePath canvas) throws IOException, InterruptedException {
-        OutputStream os = null;
+        OutputStream os = create(canvas);
+        try {
+            paintSourceCode(source, paint, os);
+        } finally {
+            closeQuietly(os);
+        }
+    }
 
+    /**
+     * Opens a new file rather than overwriting the existing one, which {@link PaintedSourceStore} may have linked to.
+     */
+    private static OutputStream create(FilePath canvas) throws IOException, InterruptedException {
+        canvas.getParent().mkdirs();
+        if (canvas.exists() && !canvas.isDirectory()) {
+            canvas.delete();
+        }
+        return canvas.write();
+    }
+
+    private void paintSourceCode(File source, CoveragePaint paint, OutputStream os) throws IOException, InterruptedException {
+        if (rawSource) {
+            storeSource(source, os);
+            return;
+        }
         FileInputStream is = null;
         InputStreamReader reader = null;
         BufferedReader input = null;
@@ -60,43 +231,19 @@ public class SourceCodePainter extends MasterToSlaveFileCallable<Boolean> implem
         BufferedWriter output = null;
         int line = 0;
         try {
-            canvas.getParent().mkdirs();
-            os = canvas.write();
             is = new FileInputStream(source);
             reader = new InputStreamReader(is, getSourceEncoding().getEncodingName());
             input = new BufferedReader(reader);
-            bos = new OutputStreamWriter(os, "UTF-8");
+            bos = new OutputStreamWriter(new GZIPOutputStream(os), "UTF-8");
             output = new BufferedWriter(bos);
+            SourceLineRenderer renderer = new SourceLineRenderer(output, paint);
             String content;
             while ((content = input.readLine()) != null) {
-                line++;
-
-                if (paint.isPainted(line)) {
-                    final int hits = paint.getHits(line);
-                    final int branchCoverage = paint.getBranchCoverage(line);
-                    final int branchTotal = paint.getBranchTotal(line);
-                    final int coveragePercent = (hits == 0) ? 0 : (int) (branchCoverage * 100.0 / branchTotal);
-                    if (paint.getHits(line) > 0) {
-                        if (branchTotal == branchCoverage) {
-                            output.write("<tr class=\"coverFull\">\n");
-                        } else {
-                            output.write("<tr class=\"coverPart\" title=\"Line " + line + ": Conditional coverage " + coveragePercent + "% ("
-                                    + branchCoverage + "/" + branchTotal + ")\">\n");
-                        }
-                    } else {
-                        output.write("<tr class=\"coverNone\">\n");
-                    }
-                    output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
-                    output.write("<td class=\"hits\">" + hits + "</td>\n");
-                } else {
-                    output.write("<tr class=\"noCover\">\n");
-                    output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
-                    output.write("<td class=\"hits\"/>\n");
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
                 }
-                output.write("<td class=\"code\">"
-                        + content.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\n", "").replace("\r", "").replace(" ",
-                        "&nbsp;").replace("\t", "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;") + "</td>\n");
-                output.write("</tr>\n");
+                line++;
+                renderer.render(line, content);
             }
 
             paint.setTotalLines(line);
@@ -105,50 +252,586 @@ public class SourceCodePainter extends MasterToSlaveFileCallable<Boolean> implem
             closeQuietly(bos);
             closeQuietly(input);
             closeQuietly(is);
-            closeQuietly(os);
             closeQuietly(reader);
         }
     }
 
+    private void storeSource(File source, OutputStream os) throws IOException, InterruptedException {
+        Reader input = null;
+        Writer output = null;
+        try {
+            input = new InputStreamReader(new FileInputStream(source), getSourceEncoding().getEncodingName());
+            output = new OutputStreamWriter(new GZIPOutputStream(os), "UTF-8");
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            // finishes the gzip stream
+            closeQuietly(output);
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Writes the page of a source that is too large to be painted: one row that says so and lists the lines that
+     * were never executed.
+     */
+    private void writeSummary(File source, CoveragePaint paint, OutputStream os) throws IOException {
+        StringBuilder summary = new StringBuilder("<tr class=\"noCover\">\n<td class=\"line\"/>\n<td class=\"hits\"/>\n")
+                .append("<td class=\"code\">This source file was not painted, its size of ")
+                .append((source.length() + 1023) / 1024).append("&nbsp;KB is over the limits. ");
+        int[] ranges = paint.getUncoveredRanges();
+        if (ranges.length == 0) {
+            summary.append("No line was left unexecuted.");
+        } else {
+            summary.append("Lines never executed: ");
+            for (int i = 0; i < ranges.length && i < MAX_SUMMARY_RANGES * 2; i += 2) {
+                summary.append(i == 0 ? "" : ", ").append(ranges[i]);
+                if (ranges[i + 1] != ranges[i]) {
+                    summary.append('-').append(ranges[i + 1]);
+                }
+            }
+            summary.append(ranges.length > MAX_SUMMARY_RANGES * 2 ? ", ..." : ".");
+        }
+        summary.append("</td>\n</tr>\n");
+        Writer output = new OutputStreamWriter(new GZIPOutputStream(os), "UTF-8");
+        try {
+            output.write(summary.toString());
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Gets the name of the file the given source is painted to, relative to {@link #destination}. Summaries are
+     * painted even in raw mode.
+     */
+    private String outputName(String path, boolean summary) {
+        return path + (rawSource && !summary ? RAW_SOURCE_SUFFIX : PAINTED_SOURCE_SUFFIX);
+    }
+
+    /**
+     * Paints the sources of the given workspace into {@link #destination}.
+     *
+     * <p>
+     * When the workspace is on an agent and the destination on the controller, the agent does not write each
+     * painted file through its own remote stream: it streams all of them back as one zip archive through a
+     * {@link Pipe}, which the controller unpacks as it arrives. That is one stream instead of a couple of
+     * round trips per file.
+     *
+     * @param workspace where to look for the sources
+     * @return whether painting went through, {@code false} if it was interrupted
+     * @throws IOException          if the painted sources cannot be transferred
+     * @throws InterruptedException if the build is aborted
+     */
+    public Boolean paint(FilePath workspace) throws IOException, InterruptedException {
+        previous = readManifest();
+        if (!workspace.isRemote() || destination.isRemote()) {
+            return workspace.act(this);
+        }
+        archive = Pipe.createRemoteToLocal();
+        Future<Boolean> painted = workspace.actAsync(this);
+        try {
+            unpack(archive.getIn(), new File(destination.getRemote()), listener);
+        } catch (IOException e) {
+            painted.cancel(true);
+            throw e;
+        } finally {
+            archive = null;
+        }
+        try {
+            return painted.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to paint source code", e.getCause());
+        }
+    }
+
+    /**
+     * Extracts the archive while it is being received. Entries that would end up outside of the destination are
+     * skipped.
+     */
+    static void unpack(InputStream stream, File dir, TaskListener listener) throws IOException {
+        String root = dir.getCanonicalPath() + File.separator;
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(stream));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                File target = new File(dir, entry.getName());
+                if (!target.getCanonicalPath().startsWith(root)) {
+                    listener.error("Not unpacking painted source " + entry.getName() + " outside of " + dir);
+                    continue;
+                }
+                target.getParentFile().mkdirs();
+                // a new file, see create(FilePath)
+                if (target.isFile()) {
+                    target.delete();
+                }
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    Util.copyStream(in, out);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
-    public Boolean invoke(File workspaceDir, VirtualChannel channel) throws IOException {
-        final List<File> trialPaths = new ArrayList<File>(sourcePaths.size());
-        for (String sourcePath : sourcePaths) {
-            final File trialPath = new File(sourcePath);
-            if (trialPath.exists()) {
-                trialPaths.add(trialPath);
+    public Boolean invoke(final File workspaceDir, VirtualChannel channel) throws IOException {
+        if (archive == null) {
+            return paint(workspaceDir, null);
+        }
+        try {
+            return paint(workspaceDir, archive.getOut());
+        } finally {
+            // the controller reads until the stream ends, so it must end even if painting failed
+            closeQuietly(archive.getOut());
+        }
+    }
+
+    /**
+     * Paints the sources of the given workspace, either into {@link #destination} or as a zip archive.
+     *
+     * @param workspaceDir where to look for the sources
+     * @param archive      where to write the archive to, or {@code null} to write to {@link #destination}
+     * @return whether painting went through, {@code false} if it was interrupted
+     * @throws IOException if the archive cannot be written
+     */
+    Boolean paint(final File workspaceDir, OutputStream archive) throws IOException {
+        ZipOutputStream zip = null;
+        try {
+            if (archive != null) {
+                zip = new ZipOutputStream(new BufferedOutputStream(archive));
+                // the entries are gzipped already
+                zip.setLevel(Deflater.NO_COMPRESSION);
             }
-            final File trialPath2 = new File(workspaceDir, sourcePath);
-            if (trialPath2.exists() && !trialPath2.equals(trialPath)) {
-                trialPaths.add(trialPath2);
+            final List<File> trialPaths = new ArrayList<File>(sourcePaths.size());
+            for (String sourcePath : sourcePaths) {
+                final File trialPath = new File(sourcePath);
+                if (trialPath.exists()) {
+                    trialPaths.add(trialPath);
+                }
+                final File trialPath2 = new File(workspaceDir, sourcePath);
+                if (trialPath2.exists() && !trialPath2.equals(trialPath)) {
+                    trialPaths.add(trialPath2);
+                }
+            }
+            List<File> roots = new ArrayList<File>(trialPaths.size() + 1);
+            roots.add(workspaceDir);
+            roots.addAll(trialPaths);
+            Map<String, File> sources = indexSources(roots, paint.keySet());
+            reportUnresolved(roots, sources);
+            summarized = applyLimits(sources);
+
+            if (previous == null) {
+                previous = readManifest();
+            }
+            painted = new ConcurrentHashMap<String, String>();
+            reused = new AtomicInteger();
+            Boolean result = paintAll(sources, zip);
+            writeManifest(zip);
+            if (reused.get() > 0) {
+                listener.getLogger().println("Reused " + reused + " of " + paint.size()
+                        + " painted source files, their source and coverage are unchanged");
+            }
+            return result;
+        } catch (InterruptedException e) {
+            return Boolean.FALSE;
+        } finally {
+            previous = null;
+            if (zip != null) {
+                zip.close();
             }
         }
-        for (Map.Entry<String, CoveragePaint> entry : paint.entrySet()) {
-            // first see if we can find the file
-            File source = new File(workspaceDir, entry.getKey());
-            final Iterator<File> possiblePath = trialPaths.iterator();
-            while (!source.exists() && possiblePath.hasNext()) {
-                source = new File(possiblePath.next(), entry.getKey());
+    }
+
+    /**
+     * Finds the sources to paint with one walk of the given directories, rather than looking for each source in each
+     * of them. Only the directories on the way to a source are listed. A source found in several directories is
+     * taken from the first one, as the workspace and then the source directories used to be searched in order.
+     *
+     * <p>
+     * Paths are walked in their normalized form, without {@code .} segments or doubled slashes. The sources the walk
+     * does not find, such as paths that lead out of the directories or that only match in another case on a case
+     * insensitive file system, are still looked for in each directory one by one.
+     *
+     * @param roots the directories to look in, in order
+     * @param paths the relative paths of the sources, with {@code /} as separator
+     * @return the sources that were found, by relative path as given
+     * @throws InterruptedException if the build is aborted
+     */
+    static Map<String, File> indexSources(List<File> roots, Set<String> paths) throws InterruptedException {
+        Set<String> normalized = new HashSet<String>();
+        Set<String> dirs = new HashSet<String>();
+        for (String path : paths) {
+            String n = normalize(path);
+            if (n == null) {
+                continue;
             }
-            if (source.isFile()) {
+            normalized.add(n);
+            for (int slash = n.indexOf('/'); slash > 0; slash = n.indexOf('/', slash + 1)) {
+                dirs.add(n.substring(0, slash + 1));
+            }
+        }
+        Map<String, File> found = new HashMap<String, File>();
+        for (File root : roots) {
+            indexSources(root, "", normalized, dirs, found);
+        }
+
+        Map<String, File> index = new HashMap<String, File>();
+        for (String path : paths) {
+            String n = normalize(path);
+            File source = n == null ? null : found.get(n);
+            for (int i = 0; source == null && i < roots.size(); i++) {
+                File candidate = new File(roots.get(i), path);
+                if (candidate.isFile()) {
+                    source = candidate;
+                }
+            }
+            if (source != null) {
+                index.put(path, source);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drops the empty and {@code .} segments of a relative path and resolves its {@code ..} segments.
+     *
+     * @return the normalized path, or {@code null} if it leads out of the directory it is relative to
+     */
+    static String normalize(String path) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0 || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+            } else {
+                segments.add(segment);
+            }
+        }
+        return segments.isEmpty() ? null : Util.join(segments, "/");
+    }
+
+    private static void indexSources(File dir, String prefix, Set<String> paths, Set<String> dirs, Map<String, File> index)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String path = prefix + name;
+            if (paths.contains(path) && !index.containsKey(path)) {
+                index.put(path, new File(dir, name));
+            }
+            if (dirs.contains(path + '/')) {
+                indexSources(new File(dir, name), path + '/', paths, dirs, index);
+            }
+        }
+    }
+
+    /**
+     * Lists a few of the sources that could not be found, rather than nothing at all.
+     */
+    private void reportUnresolved(List<File> roots, Map<String, File> sources) {
+        int unresolved = paint.size() - sources.size();
+        if (unresolved == 0) {
+            return;
+        }
+        List<String> examples = new ArrayList<String>();
+        for (String path : paint.keySet()) {
+            if (!sources.containsKey(path)) {
+                examples.add(path);
+                if (examples.size() == MAX_UNRESOLVED_REPORTED) {
+                    break;
+                }
+            }
+        }
+        Collections.sort(examples);
+        listener.getLogger().println("Could not find " + unresolved + " of " + paint.size()
+                + " source files in " + roots + ", they are not painted: " + Util.join(examples, ", ")
+                + (unresolved > examples.size() ? ", ..." : ""));
+    }
+
+    /**
+     * Drops the excluded sources and picks those that are too large to be painted, then reports both to the build
+     * log along with how much source was left unpainted.
+     *
+     * @param sources the sources that were found; the excluded ones are removed
+     * @return the sources that only get a summary
+     */
+    private Set<String> applyLimits(Map<String, File> sources) {
+        List<String> excluded = new ArrayList<String>();
+        if (excludes != null && excludes.trim().length() > 0) {
+            List<String> patterns = new ArrayList<String>();
+            for (String pattern : excludes.split(",")) {
+                if (pattern.trim().length() > 0) {
+                    patterns.add(pattern.trim().replace('\\', '/'));
+                }
+            }
+            for (String path : sources.keySet()) {
+                for (String pattern : patterns) {
+                    if (SelectorUtils.matchPath(pattern.replace('/', File.separatorChar), path.replace('/', File.separatorChar))) {
+                        excluded.add(path);
+                        break;
+                    }
+                }
+            }
+        }
+        long skippedBytes = 0;
+        for (String path : excluded) {
+            skippedBytes += sources.remove(path).length();
+        }
+
+        Set<String> summaries = new HashSet<String>();
+        if (maxFileSize > 0 || maxTotalSize > 0) {
+            long total = 0;
+            for (String path : new TreeSet<String>(sources.keySet())) {
+                long size = sources.get(path).length();
+                if ((maxFileSize > 0 && size > maxFileSize) || (maxTotalSize > 0 && total + size > maxTotalSize)) {
+                    summaries.add(path);
+                    skippedBytes += size;
+                } else {
+                    total += size;
+                }
+            }
+        }
+
+        if (!excluded.isEmpty() || !summaries.isEmpty()) {
+            listener.getLogger().println("Not painting " + (excluded.size() + summaries.size()) + " source files, "
+                    + (skippedBytes + 1023) / 1024 + " KB of source: " + excluded.size() + " excluded by pattern, "
+                    + summaries.size() + " over the size limits and only summarized"
+                    + (summaries.isEmpty() ? "" : " (" + Util.join(first(summaries), ", ") + ")"));
+        }
+        return summaries;
+    }
+
+    private static List<String> first(Set<String> paths) {
+        List<String> first = new ArrayList<String>(new TreeSet<String>(paths));
+        if (first.size() > MAX_UNRESOLVED_REPORTED) {
+            first = new ArrayList<String>(first.subList(0, MAX_UNRESOLVED_REPORTED));
+            first.add("...");
+        }
+        return first;
+    }
+
+    /**
+     * Reads the manifest of the previous painting and deletes it: it only becomes valid again once this painting
+     * is done. Files whose output is no longer there are left out, so that they get painted again.
+     */
+    private Map<String, String> readManifest() throws IOException, InterruptedException {
+        Map<String, String> manifest = new HashMap<String, String>();
+        FilePath file = destination.child(MANIFEST);
+        if (!file.exists()) {
+            return manifest;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(file.read(), "UTF-8"));
+        try {
+            // painted with another encoding or format, nothing can be reused
+            if (getManifestHeader().equals(in.readLine())) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        String path = line.substring(0, tab);
+                        if (destination.child(outputName(path, line.endsWith(SUMMARY))).exists()) {
+                            manifest.put(path, line.substring(tab + 1));
+                        }
+                    }
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        file.delete();
+        return manifest;
+    }
+
+    private String getManifestHeader() {
+        return MANIFEST_HEADER + getSourceEncoding().getEncodingName() + (rawSource ? " raw" : "");
+    }
+
+    private void writeManifest(ZipOutputStream zip) throws IOException, InterruptedException {
+        StringBuilder manifest = new StringBuilder(getManifestHeader());
+        for (Map.Entry<String, String> entry : painted.entrySet()) {
+            manifest.append('\n').append(entry.getKey()).append('\t').append(entry.getValue());
+        }
+        byte[] bytes = manifest.append('\n').toString().getBytes("UTF-8");
+        if (zip != null) {
+            synchronized (zip) {
+                zip.putNextEntry(new ZipEntry(MANIFEST));
+                zip.write(bytes);
+                zip.closeEntry();
+            }
+        } else {
+            OutputStream out = destination.child(MANIFEST).write();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private Boolean paintAll(final Map<String, File> sources, final ZipOutputStream zip)
+            throws IOException {
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        if (threads > 0) {
+            poolSize = Math.min(poolSize, threads);
+        }
+        if (poolSize <= 1 || paint.size() <= 1) {
+            for (Map.Entry<String, CoveragePaint> entry : paint.entrySet()) {
                 try {
-                    paintSourceCode(source, entry.getValue(), destination.child(entry.getKey()));
-                } catch (IOException e) {
-                    // We made our best shot at generating painted source code,
-                    // but alas, we failed. Log the error and continue. We
-                    // should not fail the build just because we cannot paint
-                    // one file.
-                    e.printStackTrace(listener.error("ERROR: Failure to paint " + source + " to " + destination));
+                    paintEntry(sources.get(entry.getKey()), entry.getKey(), entry.getValue(), zip);
                 } catch (InterruptedException e) {
                     return Boolean.FALSE;
                 }
             }
+            return Boolean.TRUE;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(poolSize, paint.size()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Cobertura source painter #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(paint.size());
+            for (final Map.Entry<String, CoveragePaint> entry : paint.entrySet()) {
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        paintEntry(sources.get(entry.getKey()), entry.getKey(), entry.getValue(), zip);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InterruptedException) {
+                        return Boolean.FALSE;
+                    }
+                    throw new IOException("Failed to paint source code", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            return Boolean.FALSE;
+        } finally {
+            // interrupts the files still being painted when the build got aborted
+            pool.shutdownNow();
         }
         return Boolean.TRUE;
     }
 
+    /**
+     * Paints a source file, if it was found. A file that cannot be painted is reported to the build log; it does not
+     * fail the build, but failing to add it to the archive does.
+     */
+    private void paintEntry(File source, String path, CoveragePaint paint, ZipOutputStream zip)
+            throws IOException, InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (source != null && source.isFile()) {
+            boolean summary = summarized.contains(path);
+            String digests;
+            // what goes into the archive, kept until the archive is free; large files wait on disk
+            ByteArrayOutputStream buffer = null;
+            File spill = null;
+            OutputStream os = null;
+            try {
+                digests = Util.getDigestOf(source) + '\t' + paint.getDigest() + (summary ? SUMMARY : "");
+                if (digests.equals(previous.get(path))) {
+                    // the output of the previous painting is still there and still right
+                    painted.put(path, digests);
+                    reused.incrementAndGet();
+                    return;
+                }
+                if (zip != null) {
+                    if (source.length() > MAX_BUFFERED_SOURCE) {
+                        spill = File.createTempFile("cobertura", PAINTED_SOURCE_SUFFIX);
+                        os = new FileOutputStream(spill);
+                    } else {
+                        os = buffer = new ByteArrayOutputStream();
+                    }
+                }
+                if (summary) {
+                    if (os == null) {
+                        os = create(destination.child(outputName(path, true)));
+                    }
+                    writeSummary(source, paint, os);
+                } else if (os == null) {
+                    paintSourceCode(source, paint, destination.child(outputName(path, false)));
+                } else {
+                    paintSourceCode(source, paint, os);
+                }
+            } catch (IOException e) {
+                // We made our best shot at generating painted source code,
+                // but alas, we failed. Log the error and continue. We
+                // should not fail the build just because we cannot paint
+                // one file.
+                synchronized (listener) {
+                    e.printStackTrace(listener.error("ERROR: Failure to paint " + source + " to " + destination));
+                }
+                closeQuietly(os);
+                if (spill != null) {
+                    spill.delete();
+                }
+                return;
+            } finally {
+                closeQuietly(os);
+            }
+            if (zip != null) {
+                try {
+                    synchronized (zip) {
+                        zip.putNextEntry(new ZipEntry(outputName(path, summary)));
+                        if (spill != null) {
+                            InputStream in = new FileInputStream(spill);
+                            try {
+                                Util.copyStream(in, zip);
+                            } finally {
+                                in.close();
+                            }
+                        } else {
+                            buffer.writeTo(zip);
+                        }
+                        zip.closeEntry();
+                    }
+                } finally {
+                    if (spill != null) {
+                        spill.delete();
+                    }
+                }
+            }
+            painted.put(path, digests);
+        }
+    }
+
     public SourceEncoding getSourceEncoding() {
         if (sourceEncoding == null) {
             return SourceEncoding.UTF_8;
@@ -0,0 +1,155 @@
+package hudson.plugins.cobertura.renderers;
+
+import hudson.plugins.cobertura.targets.CoveragePaint;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the table rows of painted source code, one line at a time. Used by {@link SourceCodePainter} when painting
+ * at build time, and by {@link PaintedSourceView} when sources are rendered as they are viewed, so that both give
+ * the same markup.
+ *
+ * <p>
+ * Painting is dominated by the work done for each line, so a line is escaped in a single pass straight into the
+ * writer, its coverage is looked up once, and numbers are written through a scratch buffer: nothing is allocated
+ * per line. A renderer is meant for one file and one thread.
+ */
+public final class SourceLineRenderer {
+
+    private static final String NBSP = "&nbsp;";
+
+    private static final String TAB = "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;";
+
+    private final Writer output;
+
+    private final CoveragePaint paint;
+
+    /**
+     * Hits, branch coverage and branch total of the current line, see {@link CoveragePaint#getLine(int, int[])}.
+     */
+    private final int[] coverage = new int[3];
+
+    private final char[] digits = new char[11];
+
+    /**
+     * @param output where to write to
+     * @param paint  the coverage of the file
+     */
+    public SourceLineRenderer(Writer output, CoveragePaint paint) {
+        this.output = output;
+        this.paint = paint;
+    }
+
+    /**
+     * Writes a line.
+     *
+     * @param line    the line number, starting at 1
+     * @param content the text of the line, without the line terminator
+     * @throws IOException if writing fails
+     */
+    public void render(int line, String content) throws IOException {
+        if (paint.getLine(line, coverage)) {
+            final int hits = coverage[0];
+            final int branchCoverage = coverage[1];
+            final int branchTotal = coverage[2];
+            if (hits > 0) {
+                if (branchTotal == branchCoverage) {
+                    output.write("<tr class=\"coverFull\">\n");
+                } else {
+                    output.write("<tr class=\"coverPart\" title=\"Line ");
+                    writeInt(line);
+                    output.write(": Conditional coverage ");
+                    writeInt((int) (branchCoverage * 100.0 / branchTotal));
+                    output.write("% (");
+                    writeInt(branchCoverage);
+                    output.write('/');
+                    writeInt(branchTotal);
+                    output.write(")\">\n");
+                }
+            } else {
+                output.write("<tr class=\"coverNone\">\n");
+            }
+            writeLineNumber(line);
+            output.write("<td class=\"hits\">");
+            writeInt(hits);
+            output.write("</td>\n");
+        } else {
+            output.write("<tr class=\"noCover\">\n");
+            writeLineNumber(line);
+            output.write("<td class=\"hits\"/>\n");
+        }
+        output.write("<td class=\"code\">");
+        writeEscaped(content);
+        output.write("</td>\n");
+        output.write("</tr>\n");
+    }
+
+    private void writeLineNumber(int line) throws IOException {
+        output.write("<td class=\"line\"><a name='");
+        writeInt(line);
+        output.write("'/>");
+        writeInt(line);
+        output.write("</td>\n");
+    }
+
+    /**
+     * Escapes the markup characters and keeps the whitespace of the code; line terminators are dropped. Runs of
+     * characters that need no escaping are written as they are.
+     */
+    private void writeEscaped(String content) throws IOException {
+        int start = 0;
+        int length = content.length();
+        for (int i = 0; i < length; i++) {
+            String replacement;
+            switch (content.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case ' ':
+                    replacement = NBSP;
+                    break;
+                case '\t':
+                    replacement = TAB;
+                    break;
+                case '\n':
+                case '\r':
+                    replacement = "";
+                    break;
+                default:
+                    continue;
+            }
+            if (i > start) {
+                output.write(content, start, i - start);
+            }
+            output.write(replacement);
+            start = i + 1;
+        }
+        if (length > start) {
+            output.write(content, start, length - start);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        if (value == Integer.MIN_VALUE) {
+            output.write(Integer.toString(value));
+            return;
+        }
+        int position = digits.length;
+        int rest = Math.abs(value);
+        do {
+            digits[--position] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest > 0);
+        if (value < 0) {
+            digits[--position] = '-';
+        }
+        output.write(digits, position, digits.length - position);
+    }
+}
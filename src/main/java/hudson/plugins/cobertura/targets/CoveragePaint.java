@@ -3,9 +3,16 @@ package hudson.plugins.cobertura.targets;
 import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import hudson.Util;
 import hudson.plugins.cobertura.Ratio;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
 
@@ -113,12 +120,117 @@ public class CoveragePaint implements Serializable {
 
     private int totalLines = 0;
 
+    /**
+     * When not {@code null}, the line data lives in this (memory-mapped) buffer instead of {@link #lines}, as
+     * {@link #mappedCount} records of {@link CoveragePaintStore#RECORD_SIZE} bytes sorted by line, starting at
+     * {@link #mappedOffset}. See {@link CoveragePaintStore}.
+     */
+    private transient ByteBuffer mapped;
+
+    private transient int mappedOffset;
+
+    private transient int mappedCount;
+
     public CoveragePaint(CoverageElement source) {
 //		there were no getters against the source ...
 //      this.source = source;
     }
 
+    /**
+     * Switches this paint to records stored in the given buffer and lets go of the on-heap line data.
+     */
+    void attach(ByteBuffer buffer, int offset, int count) {
+        this.mapped = buffer;
+        this.mappedOffset = offset;
+        this.mappedCount = count;
+        this.lines = new TIntObjectHashMap<CoveragePaintDetails>();
+    }
+
+    /**
+     * Brings mapped line data back on-heap, before it gets modified or serialized.
+     */
+    private void materialize() {
+        if (mapped == null) {
+            return;
+        }
+        int[] records = toRecords();
+        mapped = null;
+        lines = new TIntObjectHashMap<CoveragePaintDetails>(records.length / 4);
+        for (int i = 0; i < records.length; i += 4) {
+            lines.put(records[i], CoveragePaintDetails.create(records[i + 1], records[i + 3], records[i + 2]));
+        }
+    }
+
+    /**
+     * Gets the line data as {@code (line, hits, branchCoverage, branchTotal)} quadruples sorted by line.
+     */
+    int[] toRecords() {
+        if (mapped != null) {
+            int[] records = new int[mappedCount * 4];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = mapped.getInt(mappedOffset + i * 4);
+            }
+            return records;
+        }
+        int[] keys = lines.keys();
+        Arrays.sort(keys);
+        int[] records = new int[keys.length * 4];
+        for (int i = 0; i < keys.length; i++) {
+            CoveragePaintDetails d = lines.get(keys[i]);
+            records[i * 4] = keys[i];
+            records[i * 4 + 1] = d.hitCount;
+            records[i * 4 + 2] = d.branchCoverage();
+            records[i * 4 + 3] = d.branchCount();
+        }
+        return records;
+    }
+
+    /**
+     * Gets a digest of the line data, which changes whenever the painted source code would.
+     *
+     * @return the hexadecimal MD5 of the {@code (line, hits, branchCoverage, branchTotal)} quadruples
+     */
+    public String getDigest() {
+        int[] records = toRecords();
+        ByteBuffer buffer = ByteBuffer.allocate(records.length * 4);
+        buffer.asIntBuffer().put(records);
+        try {
+            return Util.toHexString(MessageDigest.getInstance("MD5").digest(buffer.array()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JRE has MD5
+        }
+    }
+
+    /**
+     * Finds the mapped record of a line.
+     *
+     * @return the byte position of the record, or -1 if the line is not painted
+     */
+    private int findMapped(int line) {
+        int low = 0;
+        int high = mappedCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int position = mappedOffset + mid * CoveragePaintStore.RECORD_SIZE;
+            int midLine = mapped.getInt(position);
+            if (midLine < line) {
+                low = mid + 1;
+            } else if (midLine > line) {
+                high = mid - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     private void paint(int line, CoveragePaintDetails delta) {
+        materialize();
         CoveragePaintDetails d = lines.get(line);
         if (d == null) {
             lines.put(line, delta);
@@ -136,6 +248,17 @@ public class CoveragePaint implements Serializable {
     }
 
     public void add(CoveragePaint child) {
+        if (mapped != null) {
+            // mapped data is written after aggregation, so it already includes the children
+            return;
+        }
+        if (child.mapped != null) {
+            int[] records = child.toRecords();
+            for (int i = 0; i < records.length; i += 4) {
+                paint(records[i], CoveragePaintDetails.create(records[i + 1], records[i + 3], records[i + 2]));
+            }
+            return;
+        }
         TIntObjectIterator<CoveragePaintDetails> it = child.lines.iterator();
         while (it.hasNext()) {
             it.advance();
@@ -171,6 +294,15 @@ public class CoveragePaint implements Serializable {
      * @return Value for property 'lineCoverage'.
      */
     public Ratio getLineCoverage() {
+        if (mapped != null) {
+            int covered = 0;
+            for (int i = 0; i < mappedCount; i++) {
+                if (mapped.getInt(mappedOffset + i * CoveragePaintStore.RECORD_SIZE + 4) > 0) {
+                    covered++;
+                }
+            }
+            return Ratio.create(covered, mappedCount);
+        }
         int covered = 0;
         for (CoveragePaintDetails d : lines.values(EMPTY)) {
             if (d.hitCount > 0) {
@@ -188,6 +320,14 @@ public class CoveragePaint implements Serializable {
     public Ratio getConditionalCoverage() {
         long maxTotal = 0;
         long total = 0;
+        if (mapped != null) {
+            for (int i = 0; i < mappedCount; i++) {
+                int position = mappedOffset + i * CoveragePaintStore.RECORD_SIZE;
+                total += mapped.getInt(position + 8);
+                maxTotal += mapped.getInt(position + 12);
+            }
+            return Ratio.create(total, maxTotal);
+        }
         for (CoveragePaintDetails d : lines.values(EMPTY)) {
             maxTotal += d.branchCount();
             total += d.branchCoverage();
@@ -207,11 +347,78 @@ public class CoveragePaint implements Serializable {
         return result;
     }
 
+    /**
+     * Gets the number of lines that carry coverage information.
+     */
+    int getPaintedLineCount() {
+        return mapped != null ? mappedCount : lines.size();
+    }
+
     public boolean isPainted(int line) {
+        if (mapped != null) {
+            return findMapped(line) >= 0;
+        }
         return lines.get(line) != null;
     }
 
+    /**
+     * Gets the ranges of lines that were never executed. Uncovered lines with only lines without coverage information
+     * in between make up one range.
+     *
+     * @return the first and the last line of each range, in pairs, sorted by line
+     */
+    public int[] getUncoveredRanges() {
+        int[] records = toRecords();
+        int[] ranges = new int[records.length / 2];
+        int count = 0;
+        boolean open = false;
+        for (int i = 0; i < records.length; i += 4) {
+            if (records[i + 1] > 0) {
+                open = false;
+            } else if (open) {
+                ranges[count - 1] = records[i];
+            } else {
+                ranges[count++] = records[i];
+                ranges[count++] = records[i];
+                open = true;
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * Gets all the coverage of a line with a single lookup.
+     *
+     * @param line  the line
+     * @param into  receives the hits, the branch coverage and the branch total of the line, in that order
+     * @return whether the line is painted; if not, {@code into} is left alone
+     */
+    public boolean getLine(int line, int[] into) {
+        if (mapped != null) {
+            int position = findMapped(line);
+            if (position < 0) {
+                return false;
+            }
+            into[0] = mapped.getInt(position + 4);
+            into[1] = mapped.getInt(position + 8);
+            into[2] = mapped.getInt(position + 12);
+            return true;
+        }
+        CoveragePaintDetails d = lines.get(line);
+        if (d == null) {
+            return false;
+        }
+        into[0] = d.hitCount;
+        into[1] = d.branchCoverage();
+        into[2] = d.branchCount();
+        return true;
+    }
+
     public int getHits(int line) {
+        if (mapped != null) {
+            int position = findMapped(line);
+            return position < 0 ? 0 : mapped.getInt(position + 4);
+        }
         CoveragePaintDetails d = lines.get(line);
         if (d == null) {
             return 0;
@@ -221,6 +428,10 @@ public class CoveragePaint implements Serializable {
     }
 
     public int getBranchTotal(int line) {
+        if (mapped != null) {
+            int position = findMapped(line);
+            return position < 0 ? 0 : mapped.getInt(position + 12);
+        }
         CoveragePaintDetails d = lines.get(line);
         if (d == null) {
             return 0;
@@ -230,6 +441,10 @@ public class CoveragePaint implements Serializable {
     }
 
     public int getBranchCoverage(int line) {
+        if (mapped != null) {
+            int position = findMapped(line);
+            return position < 0 ? 0 : mapped.getInt(position + 8);
+        }
         CoveragePaintDetails d = lines.get(line);
         if (d == null) {
             return 0;
@@ -0,0 +1,176 @@
+package hudson.plugins.cobertura.targets;
+
+import hudson.plugins.cobertura.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Per-build binary file holding the line-level {@link CoveragePaint} of every element of a {@link CoverageResult}
+ * tree, read back through a memory-mapped buffer so that loaded trees keep their paint off-heap.
+ *
+ * <p>
+ * Layout, all big-endian: magic, version and node count, then one {@code (long nodeId, int offset, int count)}
+ * entry per painted node sorted by {@link CoverageResult#getNodeId()}, then the records themselves. Each record
+ * is {@link #RECORD_SIZE} bytes, {@code (int line, int hits, int branchCoverage, int branchTotal)}, and the
+ * records of a node are sorted by line.
+ */
+public final class CoveragePaintStore {
+
+    /**
+     * Name of the paint file inside the build directory.
+     */
+    public static final String FILE_NAME = "cobertura-paint.dat";
+
+    /**
+     * Whether builds are published with, and loaded from, a paint file. Off by default: on Windows a mapped
+     * file cannot be deleted until the buffer is collected, which can make build deletion fail.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CoveragePaintStore.class.getName() + ".enabled");
+
+    /**
+     * Size in bytes of one line record.
+     */
+    static final int RECORD_SIZE = 16;
+
+    private static final int MAGIC = 0x43565250; // "CVRP"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     * Do not instantiate CoveragePaintStore.
+     */
+    private CoveragePaintStore() {
+    }
+
+    /**
+     * Writes the paint of the given tree.
+     *
+     * @param root the root of the tree, with its owner already set so that paint is aggregated
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(CoverageResult root, File file) throws IOException {
+        List<CoverageResult> nodes = new ArrayList<CoverageResult>();
+        collect(root, nodes);
+        Collections.sort(nodes, BY_NODE_ID);
+        List<int[]> records = new ArrayList<int[]>(nodes.size());
+        for (CoverageResult node : nodes) {
+            records.add(node.getPaint().toRecords());
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodes.size());
+            long offset = HEADER_SIZE + (long) ENTRY_SIZE * nodes.size();
+            for (int i = 0; i < nodes.size(); i++) {
+                int count = records.get(i).length / 4;
+                if (offset + (long) count * RECORD_SIZE > Integer.MAX_VALUE) {
+                    throw new IOException("Coverage paint does not fit into " + file);
+                }
+                out.writeLong(nodes.get(i).getNodeId());
+                out.writeInt((int) offset);
+                out.writeInt(count);
+                offset += (long) count * RECORD_SIZE;
+            }
+            for (int[] r : records) {
+                for (int value : r) {
+                    out.writeInt(value);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private static void collect(CoverageResult node, List<CoverageResult> nodes) {
+        if (node.getPaint() != null && node.getPaint().getPaintedLineCount() > 0) {
+            nodes.add(node);
+        }
+        for (CoverageResult child : node.getChildrenReal().values()) {
+            collect(child, nodes);
+        }
+    }
+
+    private static final Comparator<CoverageResult> BY_NODE_ID = new Comparator<CoverageResult>() {
+        public int compare(CoverageResult a, CoverageResult b) {
+            return a.getNodeId() < b.getNodeId() ? -1 : (a.getNodeId() == b.getNodeId() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Maps the given paint file and switches the paint of every matching element of the tree to it.
+     * Elements the file has no entry for keep their on-heap paint.
+     *
+     * @param root the root of a tree parsed from the same reports the file was written from
+     * @param file the paint file
+     * @throws IOException if the file cannot be mapped or is not a paint file
+     */
+    public static void attach(CoverageResult root, File file) throws IOException {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a coverage paint file");
+        }
+        attach(root, buffer, buffer.getInt(8));
+    }
+
+    private static void attach(CoverageResult node, ByteBuffer buffer, int size) {
+        CoveragePaint paint = node.getPaint();
+        if (paint != null) {
+            int entry = find(buffer, size, node.getNodeId());
+            if (entry >= 0) {
+                paint.attach(buffer, buffer.getInt(entry + 8), buffer.getInt(entry + 12));
+            }
+        }
+        for (CoverageResult child : node.getChildrenReal().values()) {
+            attach(child, buffer, size);
+        }
+    }
+
+    /**
+     * Binary search of the entry table.
+     *
+     * @return the byte position of the entry, or -1
+     */
+    private static int find(ByteBuffer buffer, int size, long nodeId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int position = HEADER_SIZE + mid * ENTRY_SIZE;
+            long midId = buffer.getLong(position);
+            if (midId < nodeId) {
+                low = mid + 1;
+            } else if (midId > nodeId) {
+                high = mid - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
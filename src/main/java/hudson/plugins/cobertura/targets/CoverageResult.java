@@ -1,5 +1,6 @@
 package hudson.plugins.cobertura.targets;
 
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Api;
 import hudson.model.Item;
@@ -8,13 +9,25 @@ import hudson.plugins.cobertura.BuildUtils;
 import hudson.plugins.cobertura.Chartable;
 import hudson.plugins.cobertura.CoberturaBuildAction;
 import hudson.plugins.cobertura.CoverageChart;
+import hudson.plugins.cobertura.CoverageGraph;
+import hudson.plugins.cobertura.CoverageNodeTrend;
+import hudson.plugins.cobertura.CoverageTreemap;
+import hudson.plugins.cobertura.CoverageTrendApi;
 import hudson.plugins.cobertura.Ratio;
-import hudson.util.Graph;
+import hudson.plugins.cobertura.renderers.PaintedSourceStore;
+import hudson.plugins.cobertura.renderers.PaintedSourceView;
+import hudson.plugins.cobertura.renderers.SourceCodePainter;
 import hudson.util.TextFile;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -24,12 +37,15 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
 
-import org.jfree.chart.JFreeChart;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
@@ -78,14 +94,27 @@ public class CoverageResult implements Serializable, Chartable {
 
     private String relativeSourcePath;
 
+    /**
+     * Identifies this element across builds, see {@link #getNodeId()}.
+     */
+    private final long nodeId;
+
     public transient Run<?, ?> owner = null;
 
     public CoverageResult(CoverageElement elementType, CoverageResult parent, String name) {
+        this(elementType, parent, name, true);
+    }
+
+    /**
+     * @param withPaint {@code false} for trees rebuilt from a {@link CoverageSummary}, which carry no line data
+     */
+    CoverageResult(CoverageElement elementType, CoverageResult parent, String name, boolean withPaint) {
         this.element = elementType;
-        this.paint = CoveragePaintRule.makePaint(element);
+        this.paint = withPaint ? CoveragePaintRule.makePaint(element) : null;
         this.parent = parent;
         this.name = name;
         this.relativeSourcePath = null;
+        this.nodeId = nodeId(parent == null ? 0 : parent.nodeId, elementType, parent == null ? null : name);
         if (this.parent != null) {
             this.parent.children.put(name, this);
         }
@@ -118,6 +147,47 @@ public class CoverageResult implements Serializable, Chartable {
         return name == null || name.trim().length() == 0 ? Messages.CoverageElement_Project() : name;
     }
 
+    /**
+     * Gets the name this element is registered under in its parent, without the fallback applied by {@link #getName()}.
+     */
+    String getRawName() {
+        return name;
+    }
+
+    /**
+     * Gets the identifier of this element. It is a hash of the element types and names on the path from the root,
+     * so the same element gets the same identifier in every build.
+     *
+     * @return Value for property 'nodeId'.
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Computes the identifier of an element from the identifier of its parent (64-bit FNV-1a).
+     *
+     * @param parentId the identifier of the parent, 0 for the root
+     * @param element  the type of the element
+     * @param name     the name of the element in its parent, {@code null} for the root
+     * @return the identifier
+     */
+    static long nodeId(long parentId, CoverageElement element, String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < 64; i += 8) {
+            hash = (hash ^ ((parentId >>> i) & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ element.ordinal()) * 0x100000001b3L;
+        if (name != null) {
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+                hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
     /**
      * Getter for property 'parent'.
      *
@@ -169,15 +239,35 @@ public class CoverageResult implements Serializable, Chartable {
     /**
      * gets the file corresponding to the source file.
      *
-     * @return The file where the source file should be (if it exists)
+     * <p>
+     * Builds that recorded their sources in the {@link PaintedSourceStore} get them from there. Otherwise only the
+     * latest painting of the job is around: sources are painted to a gzipped file, or kept raw when they are
+     * painted as they are viewed, and earlier versions painted them to a plain file. Several of these may be around
+     * when the publisher setting or the plugin changed, and the newest wins.
+     *
+     * @return The file where the source file is, or {@code null} if there is none
      */
     private File getSourceFile() {
         if (hasPermission()) {
-            return new File(owner.getParent().getRootDir(), "cobertura/" + relativeSourcePath);
+            if (PaintedSourceStore.isRecorded(owner)) {
+                return PaintedSourceStore.find(owner, relativeSourcePath);
+            }
+            File newest = null;
+            for (String suffix : SOURCE_FILE_SUFFIXES) {
+                File file = new File(owner.getParent().getRootDir(), "cobertura/" + relativeSourcePath + suffix);
+                if (file.exists() && (newest == null || file.lastModified() > newest.lastModified())) {
+                    newest = file;
+                }
+            }
+            return newest;
         }
         return null;
     }
 
+    private static final String[] SOURCE_FILE_SUFFIXES = {
+            SourceCodePainter.PAINTED_SOURCE_SUFFIX, SourceCodePainter.RAW_SOURCE_SUFFIX, ""
+    };
+
     /**
      * Getter for property 'sourceFileAvailable'.
      *
@@ -185,7 +275,8 @@ public class CoverageResult implements Serializable, Chartable {
      */
     public boolean isSourceFileAvailable() {
         if (hasPermission()) {
-            return owner == owner.getParent().getLastSuccessfulBuild() && getSourceFile().exists();
+            return (PaintedSourceStore.isRecorded(owner) || owner == owner.getParent().getLastSuccessfulBuild())
+                    && getSourceFile() != null;
         }
         return false;
     }
@@ -200,14 +291,33 @@ public class CoverageResult implements Serializable, Chartable {
      * @return Value for property 'sourceFileContent'.
      */
     public String getSourceFileContent() {
-        if (hasPermission()) {
+        File file = getSourceFile();
+        if (file == null || file.getName().endsWith(SourceCodePainter.RAW_SOURCE_SUFFIX)) {
+            return null;
+        }
+        try {
+            if (!file.getName().endsWith(SourceCodePainter.PAINTED_SOURCE_SUFFIX)) {
+                return new TextFile(file).read();
+            }
+            Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
             try {
-                return new TextFile(getSourceFile()).read();
-            } catch (IOException e) {
-                return null;
+                StringWriter out = new StringWriter();
+                Util.copyStream(in, out);
+                return out.toString();
+            } finally {
+                in.close();
             }
+        } catch (IOException e) {
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * Gets the number of lines of source the report page loads at a time from
+     * {@link #doCoverageHighlightedSource(StaplerRequest, StaplerResponse)}.
+     */
+    public int getSourceWindow() {
+        return PaintedSourceView.getPageSize();
     }
 
     /**
@@ -432,6 +542,22 @@ public class CoverageResult implements Serializable, Chartable {
         setOwner((Run<?, ?>)owner);
     }
 
+    /**
+     * Roughly estimates how much heap this element and its descendants occupy, for cache accounting.
+     *
+     * @return the estimate in bytes
+     */
+    public long estimateMemoryUsage() {
+        long size = 256 + 64 * (aggregateResults.size() + localResults.size());
+        if (paint != null) {
+            size += 128 + 48L * paint.getPaintedLineCount();
+        }
+        for (CoverageResult child : children.values()) {
+            size += 64 + child.estimateMemoryUsage();
+        }
+        return size;
+    }
+
     /**
      * Getter for property 'previousResult'.
      *
@@ -439,14 +565,7 @@ public class CoverageResult implements Serializable, Chartable {
      */
     public CoverageResult getPreviousResult() {
         if (parent == null) {
-            if (owner == null) {
-                return null;
-            }
-            Run<?, ?> prevBuild = BuildUtils.getPreviousNotFailedCompletedBuild(owner);
-            CoberturaBuildAction action = null;
-            while ((prevBuild != null) && (null == (action = prevBuild.getAction(CoberturaBuildAction.class)))) {
-                prevBuild = BuildUtils.getPreviousNotFailedCompletedBuild(prevBuild);
-            }
+            CoberturaBuildAction action = getPreviousAction();
             return action == null ? null : action.getResult();
         } else {
             CoverageResult prevParent = parent.getPreviousResult();
@@ -454,6 +573,52 @@ public class CoverageResult implements Serializable, Chartable {
         }
     }
 
+    /**
+     * Gets the action of the build that {@link #getPreviousResult()} comes from.
+     *
+     * @return the action, or {@code null} if there is no previous build with coverage.
+     */
+    private CoberturaBuildAction getPreviousAction() {
+        if (owner == null) {
+            return null;
+        }
+        Run<?, ?> prevBuild = BuildUtils.getPreviousNotFailedCompletedBuild(owner);
+        CoberturaBuildAction action = null;
+        while ((prevBuild != null) && (null == (action = prevBuild.getAction(CoberturaBuildAction.class)))) {
+            prevBuild = BuildUtils.getPreviousNotFailedCompletedBuild(prevBuild);
+        }
+        return action;
+    }
+
+    /**
+     * Gets the results of this element in the previous build. They are read from the previous build's
+     * {@link CoverageSummary}, so its report does not have to be loaded; builds published without a summary
+     * fall back to {@link #getPreviousResult()}.
+     *
+     * @return the previous results, empty if the element did not exist in the previous build.
+     */
+    public Map<CoverageMetric, Ratio> getPreviousResults() {
+        CoberturaBuildAction action = getPreviousAction();
+        if (action == null) {
+            return Collections.emptyMap();
+        }
+        CoverageSummary summary = action.getSummary();
+        if (summary != null) {
+            return summary.getResults(summary.find(this));
+        }
+        CoverageResult previous = getPreviousResult();
+        return previous == null ? Collections.<CoverageMetric, Ratio>emptyMap() : previous.getResults();
+    }
+
+    /**
+     * Getter for property 'previousResultAvailable'.
+     *
+     * @return whether this element has results in a previous build, i.e. whether there is a trend to show.
+     */
+    public boolean isPreviousResultAvailable() {
+        return !getPreviousResults().isEmpty();
+    }
+
     public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) throws IOException {
         token = token.toLowerCase();
         for (String name : children.keySet()) {
@@ -464,8 +629,114 @@ public class CoverageResult implements Serializable, Chartable {
         return null;
     }
 
+    /**
+     * Serves the rows of the painted source as an HTML fragment, all of them or those of the lines from {@code from}
+     * to {@code to}, both starting at 1 and included. Sources are streamed rather than read into memory, so that
+     * the report page can load very large ones a window at a time.
+     *
+     * <p>
+     * Sources painted at build time are stored gzipped; when all of one is asked for by a client that accepts gzip,
+     * it is sent as it is, without inflating it here.
+     *
+     * @param req the stapler request
+     * @param rsp the stapler response
+     * @throws IOException if the response cannot be written
+     */
     public void doCoverageHighlightedSource(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        // TODO
+        File file = isSourceFileAvailable() ? getSourceFile() : null;
+        if (file == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int from = parseLine(req.getParameter("from"), 1);
+        int to = parseLine(req.getParameter("to"), Integer.MAX_VALUE);
+        String name = file.getName();
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("Vary", "Accept-Encoding");
+
+        if (from == 1 && to == Integer.MAX_VALUE && name.endsWith(SourceCodePainter.PAINTED_SOURCE_SUFFIX)
+                && acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            rsp.setHeader("Content-Encoding", "gzip");
+            rsp.setContentLength((int) file.length());
+            InputStream in = new FileInputStream(file);
+            try {
+                Util.copyStream(in, rsp.getOutputStream());
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        Writer out = rsp.getCompressedWriter(req);
+        try {
+            if (name.endsWith(SourceCodePainter.RAW_SOURCE_SUFFIX)) {
+                CoveragePaint sourcePaint = paint == null ? new CoveragePaint(element) : paint;
+                int window = PaintedSourceView.getPageSize();
+                if ((from - 1) % window == 0 && to - from + 1 == window) {
+                    // what the report page asks for, kept for the next viewer
+                    out.write(PaintedSourceView.render(file, sourcePaint,
+                            owner.getExternalizableId() + '/' + Long.toHexString(nodeId), (from - 1) / window + 1).getHtml());
+                } else {
+                    PaintedSourceView.renderRows(file, sourcePaint, out, from, to);
+                }
+            } else {
+                InputStream in = new FileInputStream(file);
+                try {
+                    if (name.endsWith(SourceCodePainter.PAINTED_SOURCE_SUFFIX)) {
+                        in = new GZIPInputStream(in);
+                    }
+                    PaintedSourceView.copyRows(new InputStreamReader(in, "UTF-8"), out, from, to);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} header allows gzip, taking quality values into account: {@code gzip;q=0}
+     * refuses it, and so does {@code *;q=0} unless gzip is listed.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ENGLISH);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Float.parseFloat(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                any = accepted;
+            }
+        }
+        return Boolean.TRUE.equals(any);
+    }
+
+    private static int parseLine(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     /**
@@ -476,14 +747,25 @@ public class CoverageResult implements Serializable, Chartable {
      * @throws IOException from StaplerResponse.sendRedirect2
      */
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        new Graph(owner.getTimestamp(), 500, 200) {
+        new CoverageGraph(owner, Long.toHexString(nodeId), 500, 200) {
             @Override
-            protected JFreeChart createGraph() {
-                return new CoverageChart(CoverageResult.this).createChart();
+            protected CoverageChart createCoverageChart() {
+                return CoverageNodeTrend.createChart(CoverageResult.this);
             }
         }.doPng(req, rsp);
     }
 
+    /**
+     * Serves the treemap of the children of this element, see {@link CoverageTreemap}.
+     *
+     * @param req the stapler request
+     * @param rsp the stapler response
+     * @throws IOException if the response cannot be written
+     */
+    public void doTreemap(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        CoverageTreemap.serve(owner, nodeId, req, rsp);
+    }
+
     /**
      * Getter for property 'paintedSources'.
      *
@@ -504,4 +786,13 @@ public class CoverageResult implements Serializable, Chartable {
     public Api getApi() {
         return new Api(this);
     }
+
+    /**
+     * Gets the trend of this element as JSON, see {@link CoverageTrendApi}.
+     *
+     * @return the endpoint, or {@code null} if this report is not attached to a build
+     */
+    public CoverageTrendApi getTrend() {
+        return owner == null ? null : new CoverageTrendApi(owner, this);
+    }
 }
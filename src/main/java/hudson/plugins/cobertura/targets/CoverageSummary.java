@@ -0,0 +1,326 @@
+package hudson.plugins.cobertura.targets;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import hudson.plugins.cobertura.IOUtils;
+import hudson.plugins.cobertura.Ratio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, read-only copy of the per-element metric counters of a {@link CoverageResult} tree.
+ *
+ * <p>
+ * A summary is written next to the copied coverage reports when a build is published. It holds the element
+ * type, name and aggregated results of every node, but no {@link CoveragePaint} and nothing else that needs
+ * the full report, so previous-build comparisons can be answered without parsing the previous build's XML.
+ */
+public final class CoverageSummary {
+
+    /**
+     * Name of the summary file inside the build directory.
+     */
+    public static final String FILE_NAME = "cobertura-summary.dat";
+
+    private static final int MAGIC = 0x43565253; // "CVRS"
+
+    private static final int VERSION = 1;
+
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+
+    private static final CoverageElement[] ELEMENTS = CoverageElement.values();
+
+    private final int[] parents;
+
+    private final long[] nodeIds;
+
+    private final byte[] elements;
+
+    private final String[] names;
+
+    /**
+     * Numerators and denominators, {@link #METRICS}{@code .length} entries per node.
+     * A {@code NaN} denominator marks a metric the node does not have.
+     */
+    private final float[] numerators;
+
+    private final float[] denominators;
+
+    /**
+     * Index of each node, keyed by {@link CoverageResult#getNodeId()}.
+     */
+    private final TLongIntMap index;
+
+    /**
+     * Children of every node, built on first use: those of node {@code i} are
+     * {@code children[childStart[i]]} to {@code children[childStart[i + 1] - 1]}, in the order they were written.
+     */
+    private int[] childStart;
+
+    private int[] children;
+
+    private CoverageSummary(int size) {
+        this.parents = new int[size];
+        this.nodeIds = new long[size];
+        this.elements = new byte[size];
+        this.names = new String[size];
+        this.numerators = new float[size * METRICS.length];
+        this.denominators = new float[size * METRICS.length];
+        this.index = new TLongIntHashMap(size * 2, 0.5f, 0, -1);
+    }
+
+    /**
+     * Writes the summary of the given tree.
+     *
+     * @param root the root of the tree, with its owner already set so that results are aggregated
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(CoverageResult root, File file) throws IOException {
+        List<CoverageResult> nodes = new ArrayList<CoverageResult>();
+        collect(root, nodes);
+        Map<CoverageResult, Integer> positions = new HashMap<CoverageResult, Integer>(nodes.size() * 2);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodes.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                CoverageResult node = nodes.get(i);
+                positions.put(node, i);
+                Integer parent = node.getParent() == null ? null : positions.get(node.getParent());
+                out.writeInt(parent == null ? -1 : parent);
+                out.writeByte(node.getElement().ordinal());
+                out.writeUTF(rawName(node));
+                Map<CoverageMetric, Ratio> results = node.getResults();
+                out.writeByte(results.size());
+                for (Map.Entry<CoverageMetric, Ratio> e : results.entrySet()) {
+                    out.writeByte(e.getKey().ordinal());
+                    out.writeFloat(e.getValue().numerator);
+                    out.writeFloat(e.getValue().denominator);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Pre-order, so that parents are always written before their children.
+     */
+    private static void collect(CoverageResult node, List<CoverageResult> nodes) {
+        nodes.add(node);
+        for (CoverageResult child : node.getChildrenReal().values()) {
+            collect(child, nodes);
+        }
+    }
+
+    /**
+     * The name the node is registered under in its parent, as opposed to the display name.
+     */
+    private static String rawName(CoverageResult node) {
+        return node.getRawName() == null ? "" : node.getRawName();
+    }
+
+    /**
+     * Reads a summary written by {@link #write(CoverageResult, File)}.
+     *
+     * @param file the summary file
+     * @return the summary
+     * @throws IOException if the file cannot be read or is not a summary
+     */
+    public static CoverageSummary read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a coverage summary");
+            }
+            int size = in.readInt();
+            CoverageSummary summary = new CoverageSummary(size);
+            for (int i = 0; i < size; i++) {
+                int parent = in.readInt();
+                summary.parents[i] = parent;
+                summary.elements[i] = in.readByte();
+                summary.names[i] = in.readUTF();
+                // identifiers are derived from the path, so they need not be stored
+                summary.nodeIds[i] = CoverageResult.nodeId(parent < 0 ? 0 : summary.nodeIds[parent],
+                        summary.getElement(i), parent < 0 ? null : summary.names[i]);
+                summary.index.put(summary.nodeIds[i], i);
+                int base = i * METRICS.length;
+                for (int m = 0; m < METRICS.length; m++) {
+                    summary.denominators[base + m] = Float.NaN;
+                }
+                int count = in.readByte();
+                for (int m = 0; m < count; m++) {
+                    int metric = in.readByte();
+                    summary.numerators[base + metric] = in.readFloat();
+                    summary.denominators[base + metric] = in.readFloat();
+                }
+            }
+            return summary;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Getter for property 'size'.
+     *
+     * @return the number of nodes in this summary.
+     */
+    public int size() {
+        return parents.length;
+    }
+
+    /**
+     * Finds the node that corresponds to the given element of another build's tree.
+     *
+     * @param node an element of a (possibly different) build's tree
+     * @return the index of the matching node, or -1 if this summary has no such element
+     */
+    public int find(CoverageResult node) {
+        return find(node.getNodeId());
+    }
+
+    /**
+     * Finds a node by its identifier.
+     *
+     * @param nodeId the {@link CoverageResult#getNodeId()} of the element
+     * @return the index of the matching node, or -1 if this summary has no such element
+     */
+    public int find(long nodeId) {
+        return index.get(nodeId);
+    }
+
+    /**
+     * Rebuilds a {@link CoverageResult} tree that has the results of this summary but no line-level data.
+     * It is served instead of the full report when the controller is short of memory.
+     *
+     * @return the root of the rebuilt tree, or {@code null} if the summary is empty
+     */
+    public CoverageResult toResult() {
+        if (parents.length == 0) {
+            return null;
+        }
+        CoverageResult[] nodes = new CoverageResult[parents.length];
+        for (int i = 0; i < nodes.length; i++) {
+            CoverageResult parent = parents[i] < 0 ? null : nodes[parents[i]];
+            nodes[i] = new CoverageResult(getElement(i), parent, names[i], false);
+            // local results take precedence over aggregated ones once the owner is set
+            for (Map.Entry<CoverageMetric, Ratio> e : getResults(i).entrySet()) {
+                nodes[i].updateMetric(e.getKey(), e.getValue());
+            }
+        }
+        return nodes[0];
+    }
+
+    /**
+     * Gets the {@link CoverageResult#getNodeId()} of a node.
+     */
+    public long getNodeId(int node) {
+        return nodeIds[node];
+    }
+
+    /**
+     * Gets the index of the parent of a node.
+     *
+     * @param node index of the node
+     * @return the index of the parent, or -1 for the root
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Gets the name a node is registered under in its parent. The root keeps the name of the report, which is
+     * empty if the report has none.
+     */
+    public String getName(int node) {
+        return names[node];
+    }
+
+    /**
+     * Gets the children of a node.
+     *
+     * @param node index of the node
+     * @return the indices of the children
+     */
+    public synchronized int[] getChildren(int node) {
+        if (childStart == null) {
+            int[] start = new int[parents.length + 1];
+            for (int parent : parents) {
+                if (parent >= 0) {
+                    start[parent + 1]++;
+                }
+            }
+            for (int i = 0; i < parents.length; i++) {
+                start[i + 1] += start[i];
+            }
+            int[] fill = start.clone();
+            int[] all = new int[start[parents.length]];
+            for (int i = 0; i < parents.length; i++) {
+                if (parents[i] >= 0) {
+                    all[fill[parents[i]]++] = i;
+                }
+            }
+            children = all;
+            childStart = start;
+        }
+        return Arrays.copyOfRange(children, childStart[node], childStart[node + 1]);
+    }
+
+    /**
+     * Gets the element type of a node.
+     */
+    public CoverageElement getElement(int node) {
+        return ELEMENTS[elements[node]];
+    }
+
+    /**
+     * Gets the aggregated results of a node.
+     *
+     * @param node index of the node, or -1
+     * @return the results, empty if {@code node} is -1
+     */
+    public Map<CoverageMetric, Ratio> getResults(int node) {
+        if (node < 0) {
+            return Collections.emptyMap();
+        }
+        Map<CoverageMetric, Ratio> result = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        int base = node * METRICS.length;
+        for (int m = 0; m < METRICS.length; m++) {
+            if (!Float.isNaN(denominators[base + m])) {
+                result.put(METRICS[m], Ratio.create(numerators[base + m], denominators[base + m]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a single result of a node.
+     *
+     * @param node   index of the node
+     * @param metric the metric
+     * @return the result, or {@code null} if the node does not have it
+     */
+    public Ratio getCoverage(int node, CoverageMetric metric) {
+        int i = node * METRICS.length + metric.ordinal();
+        return Float.isNaN(denominators[i]) ? null : Ratio.create(numerators[i], denominators[i]);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Loads painted source code from the coverageHighlightedSource endpoint a window of lines at a time,
+ * so that very large files are neither sent nor held in full. The <table id="cobertura-source"> gets its
+ * first window when the page loads and the next ones on request; a link to a line (#123) loads up to it.
+ */
+(function () {
+    var table = document.getElementById("cobertura-source");
+    var more = document.getElementById("cobertura-source-more");
+    if (!table) {
+        return;
+    }
+    var body = table.tBodies[0];
+    var size = parseInt(table.getAttribute("data-window"), 10) || 2000;
+    var loading = false;
+    var complete = false;
+
+    function load(to, callback) {
+        var from = body.rows.length + 1;
+        loading = true;
+        var xhr = new XMLHttpRequest();
+        xhr.onreadystatechange = function () {
+            if (xhr.readyState !== 4) {
+                return;
+            }
+            loading = false;
+            if (xhr.status === 200) {
+                body.insertAdjacentHTML("beforeend", xhr.responseText);
+                // fewer rows than asked for: that was the end of the file
+                complete = body.rows.length < to;
+                more.style.display = complete ? "none" : "";
+                if (callback) {
+                    callback();
+                }
+            }
+        };
+        xhr.open("GET", table.getAttribute("data-url") + "?from=" + from + "&to=" + to, true);
+        xhr.send();
+    }
+
+    function target() {
+        var line = parseInt(window.location.hash.substring(1), 10);
+        return isNaN(line) ? 0 : line;
+    }
+
+    function reveal() {
+        var line = target();
+        if (line > body.rows.length && !complete) {
+            // up to the end of the window of that line
+            load(Math.ceil(line / size) * size, reveal);
+        } else if (line > 0) {
+            var anchor = document.getElementsByName(String(line))[0];
+            if (anchor) {
+                anchor.scrollIntoView();
+            }
+        }
+    }
+
+    more.getElementsByTagName("a")[0].onclick = function () {
+        if (!loading) {
+            load(body.rows.length + size);
+        }
+        return false;
+    };
+    window.addEventListener("hashchange", reveal);
+    load(Math.max(size, Math.ceil(target() / size) * size), reveal);
+})();
@@ -0,0 +1,110 @@
+/*
+ * Draws coverage trends in the browser from the trend/api/json endpoint.
+ * Every <canvas class="cobertura-trend" data-url="..."> on the page gets a chart,
+ * which is refreshed with only the builds that are newer than the ones already shown.
+ */
+(function () {
+    var COLORS = ["#EF2929", "#729FCF", "#8AE234", "#FCAF3E", "#AD7FA8", "#888A85"];
+    var LIMIT = 100;
+    var REFRESH = 60000;
+
+    function fetch(url, callback) {
+        var xhr = new XMLHttpRequest();
+        xhr.onreadystatechange = function () {
+            if (xhr.readyState === 4 && xhr.status === 200) {
+                callback(JSON.parse(xhr.responseText));
+            }
+        };
+        xhr.open("GET", url, true);
+        xhr.send();
+    }
+
+    function draw(canvas, builds, series) {
+        var ctx = canvas.getContext("2d");
+        var w = canvas.width, h = canvas.height, pad = 20;
+        ctx.clearRect(0, 0, w, h);
+        ctx.strokeStyle = "#ccc";
+        ctx.fillStyle = "#000";
+        ctx.font = "10px sans-serif";
+        for (var p = 0; p <= 100; p += 25) {
+            var gy = h - pad - p * (h - 2 * pad) / 100;
+            ctx.beginPath();
+            ctx.moveTo(pad, gy);
+            ctx.lineTo(w - 5, gy);
+            ctx.stroke();
+            ctx.fillText(p, 0, gy + 3);
+        }
+        var n = builds.length;
+        var x = function (i) {
+            return pad + (n < 2 ? 0 : i * (w - pad - 5) / (n - 1));
+        };
+        var names = Object.keys(series);
+        names.forEach(function (name, m) {
+            var color = COLORS[m % COLORS.length];
+            ctx.strokeStyle = color;
+            ctx.lineWidth = 1.5;
+            ctx.beginPath();
+            var started = false;
+            builds.forEach(function (build, i) {
+                var v = series[name][build];
+                if (v === undefined) {
+                    return;
+                }
+                var y = h - pad - v * (h - 2 * pad) / 100;
+                if (started) {
+                    ctx.lineTo(x(i), y);
+                } else {
+                    ctx.moveTo(x(i), y);
+                    started = true;
+                }
+            });
+            ctx.stroke();
+            ctx.fillStyle = color;
+            ctx.fillText(name, pad + m * 90, h - 4);
+        });
+    }
+
+    function attach(canvas) {
+        var url = canvas.getAttribute("data-url");
+        var builds = [];
+        var series = {};
+        var newest = 0;
+
+        function merge(json) {
+            json.data.forEach(function (row) {
+                var build = row[0], metric = row[2], num = row[3], den = row[4];
+                if (builds.indexOf(build) < 0) {
+                    builds.push(build);
+                }
+                series[metric] = series[metric] || {};
+                series[metric][build] = den > 0 ? 100 * num / den : 100;
+                newest = Math.max(newest, build);
+            });
+            builds.sort(function (a, b) {
+                return a - b;
+            });
+            while (builds.length > LIMIT) {
+                builds.shift();
+            }
+            draw(canvas, builds, series);
+        }
+
+        fetch(url + "?limit=" + LIMIT, merge);
+        setInterval(function () {
+            fetch(url + "?limit=" + LIMIT + "&since=" + newest, merge);
+        }, REFRESH);
+    }
+
+    function init() {
+        var canvases = document.querySelectorAll("canvas.cobertura-trend");
+        for (var i = 0; i < canvases.length; i++) {
+            attach(canvases[i]);
+        }
+    }
+
+    if (document.readyState === "loading") {
+        document.addEventListener("DOMContentLoaded", init);
+    } else {
+        init();
+    }
+})();
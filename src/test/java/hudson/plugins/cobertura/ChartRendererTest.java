@@ -0,0 +1,76 @@
+package hudson.plugins.cobertura;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ChartRenderer}.
+ */
+public class ChartRendererTest extends TestCase {
+
+    public void testPercentiles() {
+        ChartRenderer renderer = new ChartRenderer("test", 1, 1);
+        try {
+            assertEquals(0, renderer.getLatency50thPercentile());
+            for (int i = 100; i >= 1; i--) {
+                renderer.record(i);
+            }
+            assertEquals(50, renderer.getLatency50thPercentile());
+            assertEquals(90, renderer.getLatency90thPercentile());
+            assertEquals(99, renderer.getLatency99thPercentile());
+            assertEquals(100, renderer.getMaxLatency());
+            assertEquals(100, renderer.getRenderCount());
+        } finally {
+            renderer.shutdown();
+        }
+    }
+
+    public void testOnlyRecentLatenciesCount() {
+        ChartRenderer renderer = new ChartRenderer("test", 1, 1);
+        try {
+            for (int i = 0; i < ChartRenderer.WINDOW; i++) {
+                renderer.record(1000);
+            }
+            for (int i = 0; i < ChartRenderer.WINDOW; i++) {
+                renderer.record(1);
+            }
+            assertEquals(1, renderer.getMaxLatency());
+        } finally {
+            renderer.shutdown();
+        }
+    }
+
+    public void testRejectsWhenSaturated() throws Exception {
+        ChartRenderer renderer = new ChartRenderer("test", 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<String> blocking = new Callable<String>() {
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "drawn";
+            }
+        };
+        try {
+            Future<String> running = renderer.submit(blocking);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<String> queued = renderer.submit(blocking);
+            assertNotNull(queued);
+            assertEquals(1, renderer.getQueueSize());
+            assertNull(renderer.submit(blocking));
+            assertEquals(1, renderer.getRejectedCount());
+
+            release.countDown();
+            assertEquals("drawn", running.get(10, TimeUnit.SECONDS));
+            assertEquals("drawn", queued.get(10, TimeUnit.SECONDS));
+            assertEquals(2, renderer.getRenderCount());
+        } finally {
+            release.countDown();
+            renderer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package hudson.plugins.cobertura;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CoverageGraph}.
+ */
+public class CoverageGraphTest extends TestCase {
+
+    public void testSizeIsBounded() {
+        assertEquals(500, CoverageGraph.parseSize(null, 500));
+        assertEquals(500, CoverageGraph.parseSize("wide", 500));
+        assertEquals(300, CoverageGraph.parseSize("300", 500));
+        assertEquals(100, CoverageGraph.parseSize("-5", 500));
+        assertEquals(2000, CoverageGraph.parseSize("100000", 500));
+    }
+}
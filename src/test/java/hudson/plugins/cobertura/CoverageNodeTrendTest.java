@@ -0,0 +1,118 @@
+package hudson.plugins.cobertura;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import hudson.plugins.cobertura.targets.CoverageResult;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link CoverageNodeTrend}.
+ */
+public class CoverageNodeTrendTest extends TestCase {
+
+    private File data;
+
+    private File index;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = File.createTempFile("nodes", ".dat");
+        index = new File(data.getPath() + ".idx");
+        data.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        data.delete();
+        index.delete();
+    }
+
+    private CoverageResult load(String name) throws Exception {
+        CoverageResult result = CoberturaCoverageParser.parse(
+                getClass().getResourceAsStream("/hudson/plugins/cobertura/" + name), null);
+        result.setOwner((Run<?, ?>) null);
+        return result;
+    }
+
+    public void testLookup() throws Exception {
+        CoverageResult first = load("coverage-with-data.xml");
+        CoverageResult second = load("coverage.xml");
+        CoverageNodeTrend.append(data, index, CoverageNodeTrend.Block.of(1, first));
+        CoverageNodeTrend.append(data, index, CoverageNodeTrend.Block.of(2, second));
+
+        CoverageResult pkg = first.getChild("search");
+        List<Map<CoverageMetric, Ratio>> results =
+                CoverageNodeTrend.lookup(data, index, new int[] {3, 1}, pkg.getNodeId());
+        assertNull(results.get(0));
+        assertEquals(pkg.getResults(), results.get(1));
+
+        results = CoverageNodeTrend.lookup(data, index, new int[] {1, 2}, first.getNodeId());
+        assertEquals(first.getResults(), results.get(0));
+        assertEquals(second.getResults(), results.get(1));
+    }
+
+    public void testAppendSeveral() throws Exception {
+        CoverageResult first = load("coverage-with-data.xml");
+        CoverageResult second = load("coverage.xml");
+        CoverageNodeTrend.append(data, index, CoverageNodeTrend.Block.of(1, second));
+        CoverageNodeTrend.append(data, index, Arrays.asList(CoverageNodeTrend.Block.of(1, first),
+                CoverageNodeTrend.Block.of(2, second)));
+
+        List<Map<CoverageMetric, Ratio>> results =
+                CoverageNodeTrend.lookup(data, index, new int[] {2, 1}, first.getNodeId());
+        assertEquals(second.getResults(), results.get(0));
+        // republished
+        assertEquals(first.getResults(), results.get(1));
+        assertEquals(12 + 2 * 16, index.length());
+    }
+
+    public void testRemoveCompacts() throws Exception {
+        CoverageResult result = load("coverage-with-data.xml");
+        for (int i = 1; i <= 4; i++) {
+            CoverageNodeTrend.append(data, index, CoverageNodeTrend.Block.of(i, result));
+        }
+        long length = data.length();
+        CoverageNodeTrend.remove(data, index, 1);
+        assertEquals(length, data.length());
+        CoverageNodeTrend.remove(data, index, 2);
+        CoverageNodeTrend.remove(data, index, 3);
+        assertTrue(data.length() < length);
+
+        List<Map<CoverageMetric, Ratio>> results =
+                CoverageNodeTrend.lookup(data, index, new int[] {4, 3}, result.getNodeId());
+        assertEquals(result.getResults(), results.get(0));
+        assertNull(results.get(1));
+    }
+
+    public void testEarlierFormatStartsOver() throws Exception {
+        for (File file : new File[] {data, index}) {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(0x4356524e);
+                out.writeInt(1);
+                out.writeInt(CoverageMetric.values().length);
+                out.writeInt(1);
+                out.writeLong(12);
+                out.writeInt(8);
+            } finally {
+                out.close();
+            }
+        }
+        CoverageResult result = load("coverage-with-data.xml");
+        assertNull(CoverageNodeTrend.lookup(data, index, new int[] {1}, result.getNodeId()).get(0));
+
+        CoverageNodeTrend.append(data, index, CoverageNodeTrend.Block.of(2, result));
+        List<Map<CoverageMetric, Ratio>> results =
+                CoverageNodeTrend.lookup(data, index, new int[] {1, 2}, result.getNodeId());
+        assertNull(results.get(0));
+        assertEquals(result.getResults(), results.get(1));
+        assertEquals(12 + 16, index.length());
+    }
+}
@@ -1,6 +1,14 @@
 package hudson.plugins.cobertura;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -8,14 +16,28 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.acegisecurity.Authentication;
+import org.apache.commons.io.FileUtils;
 import org.easymock.classextension.EasyMock;
 import org.easymock.classextension.IMocksControl;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
+import hudson.FilePath;
+import hudson.model.Item;
+import hudson.model.Job;
 import hudson.model.Run;
+import hudson.plugins.cobertura.renderers.SourceCodePainter;
 import hudson.plugins.cobertura.targets.CoverageElement;
 import hudson.plugins.cobertura.targets.CoverageMetric;
 import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.security.ACL;
+import hudson.security.Permission;
 import junit.framework.TestCase;
 
 /**
@@ -285,4 +307,144 @@ public class CoverageResultTest extends TestCase {
         assertEquals(Collections.EMPTY_SET, result.getChildMetrics(CoverageElement.JAVA_METHOD));
         ctl.verify();
     }
+
+    /**
+     * Tests that {@link CoverageResult#getNodeId()} identifies the same element across parses.
+     */
+    public void testGetNodeId() throws Exception {
+        ctl.replay();
+        CoverageResult first = loadResults(FILE_COVERAGE_DATA);
+        CoverageResult second = loadResults(FILE_COVERAGE_DATA);
+        assertEquals(first.getNodeId(), second.getNodeId());
+        CoverageResult firstMethod = first.getChild("search").getChild("LinearSearch.java").getChild("LinearSearch").getChild("int find(int,int)");
+        CoverageResult secondMethod = second.getChild("search").getChild("LinearSearch.java").getChild("LinearSearch").getChild("int find(int,int)");
+        assertEquals(firstMethod.getNodeId(), secondMethod.getNodeId());
+        assertFalse(firstMethod.getNodeId() == firstMethod.getParent().getNodeId());
+        assertFalse(first.getChild("search").getNodeId() == first.getChild("<default>").getNodeId());
+        ctl.verify();
+    }
+
+    private static final String[] ROWS = {
+            "<tr class=\"noCover\">\n<td class=\"line\"><a name='1'/>1</td>\n<td class=\"hits\"/>\n<td class=\"code\">package&nbsp;pkg;</td>\n</tr>\n",
+            "<tr class=\"coverFull\">\n<td class=\"line\"><a name='2'/>2</td>\n<td class=\"hits\">1</td>\n<td class=\"code\">int&nbsp;x;</td>\n</tr>\n",
+            "<tr class=\"coverNone\">\n<td class=\"line\"><a name='3'/>3</td>\n<td class=\"hits\">0</td>\n<td class=\"code\">int&nbsp;y;</td>\n</tr>\n",
+    };
+
+    /**
+     * Creates a source file element of the last successful build of a job, painted at build time.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private CoverageResult paintedSource(IMocksControl control, File jobDir) throws Exception {
+        Job job = control.createMock("job", Job.class);
+        Run run = control.createMock("run", Run.class);
+        EasyMock.expect(job.getRootDir()).andReturn(jobDir).anyTimes();
+        EasyMock.expect(job.getLastSuccessfulBuild()).andReturn(run).anyTimes();
+        EasyMock.expect(run.getParent()).andReturn(job).anyTimes();
+        EasyMock.expect(run.getRootDir()).andReturn(new File(jobDir, "builds/1")).anyTimes();
+        EasyMock.expect(run.hasPermission(Item.WORKSPACE)).andReturn(true).anyTimes();
+        ACL all = new ACL() {
+            @Override
+            public boolean hasPermission(Authentication a, Permission permission) {
+                return true;
+            }
+        };
+        EasyMock.expect(run.getACL()).andReturn(all).anyTimes();
+        EasyMock.expect(job.getACL()).andReturn(all).anyTimes();
+
+        File painted = new File(jobDir, "cobertura/pkg/Foo.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX);
+        painted.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(painted)), "UTF-8");
+        try {
+            for (String row : ROWS) {
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+        CoverageResult source = new CoverageResult(CoverageElement.JAVA_FILE, null, "Foo.java");
+        source.setRelativeSourcePath("pkg/Foo.java");
+        source.setOwner((Run<?, ?>) run);
+        return source;
+    }
+
+    private static ServletOutputStream servletStream(final OutputStream out) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener listener) {
+            }
+        };
+    }
+
+    /**
+     * Tests that {@link CoverageResult#doCoverageHighlightedSource} sends a source painted at build time as it is
+     * stored to a client that accepts gzip.
+     */
+    public void testHighlightedSourceIsSentGzipped() throws Exception {
+        File jobDir = File.createTempFile("job", "");
+        jobDir.delete();
+        try {
+            IMocksControl control = EasyMock.createNiceControl();
+            CoverageResult source = paintedSource(control, jobDir);
+            StaplerRequest req = control.createMock("req", StaplerRequest.class);
+            EasyMock.expect(req.getHeader("Accept-Encoding")).andReturn("deflate, gzip;q=0.5").anyTimes();
+            StaplerResponse rsp = control.createMock("rsp", StaplerResponse.class);
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            EasyMock.expect(rsp.getOutputStream()).andReturn(servletStream(sent)).anyTimes();
+            rsp.setHeader("Content-Encoding", "gzip");
+            control.replay();
+
+            source.doCoverageHighlightedSource(req, rsp);
+            control.verify();
+            File painted = new File(jobDir, "cobertura/pkg/Foo.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX);
+            assertTrue(Arrays.equals(FileUtils.readFileToByteArray(painted), sent.toByteArray()));
+        } finally {
+            new FilePath(jobDir).deleteRecursive();
+        }
+    }
+
+    /**
+     * Tests that {@link CoverageResult#doCoverageHighlightedSource} inflates a source painted at build time for a
+     * client that refuses gzip, and for ranges of lines.
+     */
+    public void testHighlightedSourceIsInflated() throws Exception {
+        File jobDir = File.createTempFile("job", "");
+        jobDir.delete();
+        try {
+            IMocksControl control = EasyMock.createNiceControl();
+            CoverageResult source = paintedSource(control, jobDir);
+            StaplerRequest req = control.createMock("req", StaplerRequest.class);
+            EasyMock.expect(req.getHeader("Accept-Encoding")).andReturn("gzip;q=0, *").anyTimes();
+            StaplerResponse rsp = control.createMock("rsp", StaplerResponse.class);
+            StringWriter all = new StringWriter();
+            EasyMock.expect(rsp.getCompressedWriter(req)).andReturn(all);
+            control.replay();
+            source.doCoverageHighlightedSource(req, rsp);
+            control.verify();
+            assertEquals(ROWS[0] + ROWS[1] + ROWS[2], all.toString());
+
+            control.reset();
+            source = paintedSource(control, jobDir);
+            req = control.createMock("req", StaplerRequest.class);
+            EasyMock.expect(req.getHeader("Accept-Encoding")).andReturn("gzip").anyTimes();
+            EasyMock.expect(req.getParameter("from")).andReturn("2").anyTimes();
+            EasyMock.expect(req.getParameter("to")).andReturn("2").anyTimes();
+            rsp = control.createMock("rsp", StaplerResponse.class);
+            StringWriter range = new StringWriter();
+            EasyMock.expect(rsp.getCompressedWriter(req)).andReturn(range);
+            control.replay();
+            source.doCoverageHighlightedSource(req, rsp);
+            control.verify();
+            assertEquals(ROWS[1], range.toString());
+        } finally {
+            new FilePath(jobDir).deleteRecursive();
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package hudson.plugins.cobertura;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.targets.CoverageResult;
+import hudson.plugins.cobertura.targets.CoverageSummary;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+/**
+ * Unit tests for {@link CoverageTreemap}.
+ */
+public class CoverageTreemapTest extends TestCase {
+
+    public void testSquarify() {
+        double[] sizes = {6, 6, 4, 3, 2, 2, 1};
+        double[] rects = CoverageTreemap.squarify(sizes, 0, 0, 6, 4);
+        for (int i = 0; i < sizes.length; i++) {
+            double x = rects[4 * i];
+            double y = rects[4 * i + 1];
+            double w = rects[4 * i + 2];
+            double h = rects[4 * i + 3];
+            assertEquals(sizes[i], w * h, 1e-9);
+            assertTrue(x >= -1e-9 && y >= -1e-9 && x + w <= 6 + 1e-9 && y + h <= 4 + 1e-9);
+            for (int j = 0; j < i; j++) {
+                boolean apart = x + w <= rects[4 * j] + 1e-9 || rects[4 * j] + rects[4 * j + 2] <= x + 1e-9
+                        || y + h <= rects[4 * j + 1] + 1e-9 || rects[4 * j + 1] + rects[4 * j + 3] <= y + 1e-9;
+                assertTrue("rectangles " + i + " and " + j + " overlap", apart);
+            }
+        }
+        // the first row of the paper's example: two 3x2 rectangles stacked along the left
+        assertEquals(3, rects[2], 1e-9);
+        assertEquals(2, rects[3], 1e-9);
+    }
+
+    public void testColor() {
+        assertEquals("#ef2929", CoverageTreemap.color(0));
+        assertEquals("#73d216", CoverageTreemap.color(100));
+    }
+
+    public void testWrite() throws Exception {
+        CoverageResult result = CoberturaCoverageParser.parse(
+                getClass().getResourceAsStream("coverage-with-data.xml"), null);
+        result.setOwner((Run<?, ?>) null);
+        File file = File.createTempFile("summary", ".dat");
+        try {
+            CoverageSummary.write(result, file);
+            CoverageSummary summary = CoverageSummary.read(file);
+
+            StringWriter out = new StringWriter();
+            CoverageTreemap.write(summary, summary.find(result), 600, 400, out);
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new ByteArrayInputStream(out.toString().getBytes("UTF-8")));
+            // background, plus one cell per package
+            assertEquals(1 + result.getChildren().size(), doc.getElementsByTagName("rect").getLength());
+            assertTrue(out.toString().contains(
+                    "treemap?node=" + Long.toHexString(result.getChild("search").getNodeId())));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.cobertura;
+
+import hudson.model.Result;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jfree.data.category.CategoryDataset;
+
+/**
+ * Unit tests for {@link CoverageTrend}.
+ */
+public class CoverageTrendTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("trend", ".dat");
+        CoverageTrend.writeAll(file, Collections.<CoverageTrend.Record>emptyList());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static CoverageTrend.Record record(int number, Result result, int flags, float lines) {
+        float[] counters = new float[CoverageMetric.values().length * 2];
+        for (int i = 1; i < counters.length; i += 2) {
+            counters[i] = Float.NaN;
+        }
+        counters[CoverageMetric.LINE.ordinal() * 2] = lines;
+        counters[CoverageMetric.LINE.ordinal() * 2 + 1] = 10;
+        return new CoverageTrend.Record(number, number * 1000L, result.ordinal, flags, counters);
+    }
+
+    private static int[] numbers(List<CoverageTrend.Record> records) {
+        int[] numbers = new int[records.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = records.get(i).number;
+        }
+        return numbers;
+    }
+
+    private static void assertNumbers(int[] expected, List<CoverageTrend.Record> actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(numbers(actual)));
+    }
+
+    public void testReadWindow() throws Exception {
+        for (int i = 1; i <= 600; i++) {
+            CoverageTrend.append(file, record(i, Result.SUCCESS, 0, i % 10));
+        }
+        assertNumbers(new int[] {600, 599, 598}, CoverageTrend.read(file, 600, 3));
+        assertNumbers(new int[] {5, 4, 3, 2, 1}, CoverageTrend.read(file, 5, 0));
+        assertEquals(600, CoverageTrend.read(file, 600, 0).size());
+        assertNull(CoverageTrend.read(file, 601, 0));
+
+        CoverageTrend.Record r = CoverageTrend.read(file, 7, 1).get(0);
+        assertEquals(7000L, r.timestamp);
+        assertEquals(Ratio.create(7, 10), r.getResults().get(CoverageMetric.LINE));
+        assertFalse(r.getResults().containsKey(CoverageMetric.CONDITIONAL));
+    }
+
+    public void testReadPage() throws Exception {
+        for (int i = 1; i <= 600; i++) {
+            CoverageTrend.append(file, record(i, i % 2 == 0 ? Result.SUCCESS : Result.FAILURE, 0, i % 10));
+        }
+        // the head, then the charted builds
+        assertNumbers(new int[] {599, 598, 596}, CoverageTrend.read(file, 599, 0, Integer.MAX_VALUE, 3));
+        assertNumbers(new int[] {598, 596}, CoverageTrend.read(file, 599, 0, 599, 2));
+        assertNumbers(new int[] {10, 8, 6}, CoverageTrend.read(file, 599, 4, 11, 5));
+        assertNumbers(new int[] {599, 598}, CoverageTrend.read(file, 599, 597, Integer.MAX_VALUE, 0));
+        assertNumbers(new int[] {}, CoverageTrend.read(file, 599, 599, Integer.MAX_VALUE, 0));
+        assertNull(CoverageTrend.read(file, 601, 0, Integer.MAX_VALUE, 0));
+    }
+
+    public void testFilters() throws Exception {
+        CoverageTrend.append(file, record(1, Result.SUCCESS, 0, 1));
+        CoverageTrend.append(file, record(2, Result.FAILURE, 0, 2));
+        CoverageTrend.append(file, record(3, Result.UNSTABLE, 0, 3));
+        CoverageTrend.append(file, record(4, Result.UNSTABLE, CoverageTrend.ONLY_STABLE, 4));
+        CoverageTrend.append(file, record(5, Result.FAILURE, 0, 5));
+        // the head is always charted
+        assertNumbers(new int[] {5, 3, 1}, CoverageTrend.read(file, 5, 0));
+    }
+
+    public void testOutOfOrderAndRemove() throws Exception {
+        CoverageTrend.append(file, record(1, Result.SUCCESS, 0, 1));
+        CoverageTrend.append(file, record(3, Result.SUCCESS, 0, 3));
+        CoverageTrend.append(file, record(2, Result.SUCCESS, 0, 2));
+        CoverageTrend.append(file, record(3, Result.SUCCESS, 0, 4));
+        assertNumbers(new int[] {3, 2, 1}, CoverageTrend.read(file, 3, 0));
+        assertEquals(Ratio.create(4, 10), CoverageTrend.read(file, 3, 1).get(0).getResults().get(CoverageMetric.LINE));
+
+        CoverageTrend.remove(file, 2);
+        assertNumbers(new int[] {3, 1}, CoverageTrend.read(file, 3, 0));
+        assertNull(CoverageTrend.read(file, 2, 0));
+    }
+
+    public void testChart() {
+        Map<CoverageMetric, Ratio> mixed = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        mixed.put(CoverageMetric.LINE, Ratio.create(5, 10));
+        mixed.put(CoverageMetric.CONDITIONAL, Ratio.create(1, 4));
+        List<CoverageTrend.Record> records = Arrays.asList(record(3, Result.SUCCESS, 0, 9),
+                record(2, Result.SUCCESS, 0, 0).withResults(mixed), record(1, Result.SUCCESS, 0, 3));
+
+        CoverageChart chart = new CoverageChart(records, true);
+        CategoryDataset dataset = chart.getDataset();
+        assertEquals("[#1, #2, #3]", dataset.getColumnKeys().toString());
+        List<String> names = Arrays.asList(CoverageMetric.CONDITIONAL.getName(), CoverageMetric.LINE.getName());
+        Collections.sort(names);
+        assertEquals(names, dataset.getRowKeys());
+        assertEquals(50f, dataset.getValue(CoverageMetric.LINE.getName(), new CoverageChart.BuildNumberLabel(2)));
+        assertNull(dataset.getValue(CoverageMetric.CONDITIONAL.getName(), new CoverageChart.BuildNumberLabel(1)));
+        assertEquals(24, chart.getLowerBound());
+        assertEquals(91, chart.getUpperBound());
+
+        chart = new CoverageChart(records, false);
+        assertEquals(-1, chart.getLowerBound());
+        assertEquals(101, chart.getUpperBound());
+    }
+}
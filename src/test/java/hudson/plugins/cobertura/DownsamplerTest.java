@@ -0,0 +1,68 @@
+package hudson.plugins.cobertura;
+
+import junit.framework.TestCase;
+
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.category.DefaultCategoryDataset;
+
+/**
+ * Unit tests for {@link Downsampler}.
+ */
+public class DownsamplerTest extends TestCase {
+
+    private static double[] indexes(int count) {
+        double[] x = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = i;
+        }
+        return x;
+    }
+
+    public void testShortSeriesIsKept() {
+        int[] kept = Downsampler.lttb(indexes(5), new double[] {1, 2, 3, 4, 5}, 5, 10);
+        assertEquals(5, kept.length);
+        assertEquals(4, kept[4]);
+    }
+
+    public void testKeepsEndsAndExtremes() {
+        int count = 10000;
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            y[i] = 50;
+        }
+        y[1234] = 99;
+        y[8765] = 1;
+        int[] kept = Downsampler.lttb(indexes(count), y, count, 100);
+
+        assertEquals(100, kept.length);
+        assertEquals(0, kept[0]);
+        assertEquals(count - 1, kept[kept.length - 1]);
+        boolean peak = false;
+        boolean dip = false;
+        for (int i = 0; i < kept.length; i++) {
+            if (i > 0) {
+                assertTrue(kept[i] > kept[i - 1]);
+            }
+            peak |= kept[i] == 1234;
+            dip |= kept[i] == 8765;
+        }
+        assertTrue(peak);
+        assertTrue(dip);
+    }
+
+    public void testDatasetColumnsAreShared() {
+        DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        for (int i = 0; i < 1000; i++) {
+            dataset.addValue(i == 100 ? 90 : 10, "Lines", Integer.valueOf(i));
+            dataset.addValue(i == 900 ? 90 : 10, "Conditionals", Integer.valueOf(i));
+        }
+        CategoryDataset result = Downsampler.downsample(dataset, 50);
+
+        assertEquals(50, result.getColumnCount());
+        assertEquals(Integer.valueOf(0), result.getColumnKey(0));
+        assertEquals(Integer.valueOf(999), result.getColumnKey(result.getColumnCount() - 1));
+        assertEquals(90, result.getValue("Lines", Integer.valueOf(100)).intValue());
+        assertEquals(10, result.getValue("Lines", Integer.valueOf(900)).intValue());
+        assertEquals(90, result.getValue("Conditionals", Integer.valueOf(900)).intValue());
+    }
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.cobertura;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Unit tests for {@link SvgChartWriter}.
+ */
+public class SvgChartWriterTest extends TestCase {
+
+    public void testWellFormed() throws Exception {
+        DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        for (int i = 1; i <= 20; i++) {
+            dataset.addValue(50 + i, "Lines", "#" + i);
+            dataset.addValue(30 + i, "Conditionals & <branches>", "#" + i);
+        }
+        StringWriter out = new StringWriter();
+        SvgChartWriter.write(dataset, 30, 71, 500, 200, out);
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(out.toString().getBytes("UTF-8")));
+        assertEquals("svg", doc.getDocumentElement().getTagName());
+        assertEquals(2, doc.getElementsByTagName("polyline").getLength());
+        String points = ((Element) doc.getElementsByTagName("polyline").item(0)).getAttribute("points");
+        assertEquals(20, points.trim().split(" ").length);
+    }
+
+    public void testTickUnit() {
+        assertEquals(1, SvgChartWriter.tickUnit(3));
+        assertEquals(10, SvgChartWriter.tickUnit(100 - 20));
+        assertEquals(20, SvgChartWriter.tickUnit(150));
+    }
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.cobertura.dashboard;
+
+import hudson.model.Result;
+import hudson.plugins.cobertura.CoverageTrend;
+import hudson.plugins.cobertura.Ratio;
+import hudson.plugins.cobertura.targets.CoverageMetric;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jfree.data.category.DefaultCategoryDataset;
+
+/**
+ * Unit tests for {@link CoverageTrendPortlet}.
+ */
+public class CoverageTrendPortletTest extends TestCase {
+
+    private static CoverageTrend.Record record(int number, Calendar when, float covered) {
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        results.put(CoverageMetric.LINE, Ratio.create(covered, 100));
+        return new CoverageTrend.Record(number, when.getTimeInMillis(), Result.SUCCESS, false, results);
+    }
+
+    private static Calendar at(int day, int hour) {
+        Calendar when = Calendar.getInstance();
+        when.clear();
+        when.set(2026, Calendar.JANUARY, day, hour, 0);
+        return when;
+    }
+
+    public void testDataset() throws Exception {
+        Map<String, List<CoverageTrend.Record>> series = new LinkedHashMap<String, List<CoverageTrend.Record>>();
+        series.put("a", Arrays.asList(record(1, at(7, 10), 50), record(2, at(9, 10), 70), record(3, at(9, 20), 75)));
+        series.put("b", Collections.singletonList(record(1, at(10, 8), 30)));
+        series.put("later", Collections.singletonList(record(1, at(11, 8), 90)));
+        series.put("none", new ArrayList<CoverageTrend.Record>());
+
+        DefaultCategoryDataset dataset = CoverageTrendPortlet.createDataset(series, CoverageMetric.LINE, 3, at(10, 12));
+        assertEquals(Arrays.asList("a", "b"), dataset.getRowKeys());
+        assertEquals(Arrays.asList("2026-01-08", "2026-01-09", "2026-01-10"), dataset.getColumnKeys());
+        // the last build up to each day, including those from before the period shown
+        assertEquals(50f, dataset.getValue("a", "2026-01-08").floatValue());
+        assertEquals(75f, dataset.getValue("a", "2026-01-09").floatValue());
+        assertEquals(75f, dataset.getValue("a", "2026-01-10").floatValue());
+        assertNull(dataset.getValue("b", "2026-01-09"));
+        assertEquals(30f, dataset.getValue("b", "2026-01-10").floatValue());
+
+        assertEquals(0, CoverageTrendPortlet.createDataset(series, CoverageMetric.CONDITIONAL, 3, at(10, 12)).getRowCount());
+    }
+}
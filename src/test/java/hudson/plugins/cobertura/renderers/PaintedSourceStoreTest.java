@@ -0,0 +1,175 @@
+package hudson.plugins.cobertura.renderers;
+
+import hudson.FilePath;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.cobertura.targets.CoverageElement;
+import hudson.plugins.cobertura.targets.CoveragePaint;
+import hudson.util.StreamTaskListener;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+
+/**
+ * Unit tests for {@link PaintedSourceStore}.
+ */
+public class PaintedSourceStoreTest extends TestCase {
+
+    private File root;
+
+    private File workspace;
+
+    private IMocksControl ctl;
+
+    private Job<?, ?> job;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("job", "");
+        root.delete();
+        workspace = new File(root, "workspace");
+        ctl = EasyMock.createNiceControl();
+        job = ctl.createMock("job", Job.class);
+        EasyMock.expect(job.getRootDir()).andReturn(root).anyTimes();
+        EasyMock.expect(job.getBuildDir()).andReturn(new File(root, "builds")).anyTimes();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new FilePath(root).deleteRecursive();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Run<?, ?> build(int number) {
+        Run build = ctl.createMock("build" + number, Run.class);
+        File dir = new File(root, "builds/" + number);
+        dir.mkdirs();
+        EasyMock.expect(build.getRootDir()).andReturn(dir).anyTimes();
+        EasyMock.expect(build.getParent()).andReturn(job).anyTimes();
+        return build;
+    }
+
+    private String paintAndRecord(Run<?, ?> build, String changing) throws Exception {
+        return paintAndRecord(build, changing, null);
+    }
+
+    /**
+     * Paints the sources and records them for a build.
+     *
+     * @param lost the path of a source whose painted file goes missing before it is recorded, or {@code null}
+     */
+    private String paintAndRecord(Run<?, ?> build, String changing, String lost) throws Exception {
+        new FilePath(new File(workspace, "pkg/Same.java")).write("class Same {}\n", "UTF-8");
+        new FilePath(new File(workspace, "pkg/Changing.java")).write(changing, "UTF-8");
+        Map<String, CoveragePaint> paint = new HashMap<String, CoveragePaint>();
+        paint.put("pkg/Same.java", new CoveragePaint(CoverageElement.JAVA_FILE));
+        paint.put("pkg/Changing.java", new CoveragePaint(CoverageElement.JAVA_FILE));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log);
+        File painted = new File(root, "cobertura");
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(painted), Collections.<String>emptySet(), paint,
+                listener, SourceEncoding.UTF_8);
+        assertEquals(Boolean.TRUE, painter.invoke(workspace, null));
+        if (lost != null) {
+            assertTrue(new File(painted, lost + SourceCodePainter.PAINTED_SOURCE_SUFFIX).delete());
+        }
+        PaintedSourceStore.record(build, painted, listener);
+        return log.toString("UTF-8");
+    }
+
+    public void testUnchangedSourcesAreStoredOnce() throws Exception {
+        Run<?, ?> first = build(1);
+        Run<?, ?> second = build(2);
+        ctl.replay();
+
+        assertTrue(paintAndRecord(first, "class Changing {}\n").contains("Stored 2 of 2"));
+        assertTrue(paintAndRecord(second, "class Changing { int x; }\n").contains("Stored 1 of 2"));
+
+        assertTrue(PaintedSourceStore.isRecorded(first));
+        assertEquals(PaintedSourceStore.find(first, "pkg/Same.java"), PaintedSourceStore.find(second, "pkg/Same.java"));
+        File old = PaintedSourceStore.find(first, "pkg/Changing.java");
+        File changed = PaintedSourceStore.find(second, "pkg/Changing.java");
+        assertTrue(old.getName().endsWith(SourceCodePainter.PAINTED_SOURCE_SUFFIX));
+        assertFalse(old.equals(changed));
+        // painting the file again did not change what the first build stored
+        assertFalse(new FilePath(old).digest().equals(new FilePath(changed).digest()));
+        assertNull(PaintedSourceStore.find(second, "pkg/Missing.java"));
+
+        // deleting the first build only removes what the second one does not share
+        assertEquals(1, PaintedSourceStore.sweep(job, first));
+        assertFalse(old.exists());
+        assertTrue(changed.exists());
+        assertNotNull(PaintedSourceStore.find(second, "pkg/Same.java"));
+
+        assertEquals(2, PaintedSourceStore.sweep(job, second));
+        assertFalse(changed.exists());
+    }
+
+    public void testReferencesAreCountedForOlderStores() throws Exception {
+        Run<?, ?> first = build(1);
+        Run<?, ?> second = build(2);
+        Run<?, ?> third = build(3);
+        ctl.replay();
+
+        paintAndRecord(first, "class Changing {}\n");
+        paintAndRecord(second, "class Changing { int x; }\n");
+        File old = PaintedSourceStore.find(first, "pkg/Changing.java");
+        File changed = PaintedSourceStore.find(second, "pkg/Changing.java");
+        File orphan = new File(old.getParentFile().getParentFile(), "ab/ab0123");
+        orphan.getParentFile().mkdirs();
+        assertTrue(orphan.createNewFile());
+        File references = new File(root, PaintedSourceStore.BLOBS + "/" + PaintedSourceStore.REFERENCES);
+        assertTrue(references.delete());
+
+        // counted again from the builds, dropping what none of them refers to
+        paintAndRecord(third, "class Changing { int x; }\n");
+        assertTrue(references.exists());
+        assertFalse(orphan.exists());
+        assertEquals(1, PaintedSourceStore.sweep(job, first));
+        assertFalse(old.exists());
+        assertEquals(0, PaintedSourceStore.sweep(job, second));
+        assertTrue(changed.exists());
+    }
+
+    public void testRecountKeepsTheBlobsOfTheBuildBeingRecorded() throws Exception {
+        Run<?, ?> first = build(1);
+        Run<?, ?> second = build(2);
+        ctl.replay();
+
+        paintAndRecord(first, "class Changing {}\n");
+        File references = new File(root, PaintedSourceStore.BLOBS + "/" + PaintedSourceStore.REFERENCES);
+        new FilePath(references).write("# painted source references 1\nnot\ta number\n", "UTF-8");
+
+        // the new blob is not in any manifest yet when the references are counted again
+        assertTrue(paintAndRecord(second, "class Changing { int x; }\n").contains("Stored 1 of 2"));
+        File changed = PaintedSourceStore.find(second, "pkg/Changing.java");
+        assertNotNull(changed);
+        assertEquals(PaintedSourceStore.find(first, "pkg/Same.java"), PaintedSourceStore.find(second, "pkg/Same.java"));
+        assertEquals(1, PaintedSourceStore.sweep(job, first));
+        assertTrue(changed.exists());
+        assertEquals(2, PaintedSourceStore.sweep(job, second));
+    }
+
+    public void testMissingFilesAreNotRecorded() throws Exception {
+        Run<?, ?> first = build(1);
+        Run<?, ?> second = build(2);
+        ctl.replay();
+
+        paintAndRecord(first, "class Changing {}\n");
+        assertTrue(paintAndRecord(second, "class Changing { int x; }\n", "pkg/Changing.java").contains("Stored 0 of 1"));
+        assertNull(PaintedSourceStore.find(second, "pkg/Changing.java"));
+        assertNotNull(PaintedSourceStore.find(second, "pkg/Same.java"));
+
+        // only the blobs that exist were counted
+        assertEquals(1, PaintedSourceStore.sweep(job, first));
+        assertEquals(1, PaintedSourceStore.sweep(job, second));
+    }
+}
@@ -0,0 +1,113 @@
+package hudson.plugins.cobertura.renderers;
+
+import hudson.FilePath;
+import hudson.plugins.cobertura.targets.CoverageElement;
+import hudson.plugins.cobertura.targets.CoveragePaint;
+import hudson.util.StreamTaskListener;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link PaintedSourceView}.
+ */
+public class PaintedSourceViewTest extends TestCase {
+
+    private File workspace;
+
+    private File output;
+
+    private CoveragePaint paint;
+
+    private int pageSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        workspace = File.createTempFile("workspace", "");
+        workspace.delete();
+        output = File.createTempFile("painted", "");
+        output.delete();
+        pageSize = PaintedSourceView.PAGE_SIZE;
+
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            source.append("\tint x").append(i).append(" = a < b && c > d ? 1 : 0; // x\n");
+        }
+        new FilePath(new File(workspace, "pkg/Source.java")).write(source.toString(), "UTF-8");
+        paint = new CoveragePaint(CoverageElement.JAVA_FILE);
+        paint.paint(1, 0);
+        paint.paint(2, 3);
+        paint.paint(3, 3, 1, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PaintedSourceView.PAGE_SIZE = pageSize;
+        new FilePath(workspace).deleteRecursive();
+        new FilePath(output).deleteRecursive();
+    }
+
+    private void paint(boolean raw) throws Exception {
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(),
+                Collections.singletonMap("pkg/Source.java", paint), new StreamTaskListener(new ByteArrayOutputStream()),
+                SourceEncoding.UTF_8);
+        painter.setRawSource(raw);
+        assertEquals(Boolean.TRUE, painter.invoke(workspace, null));
+    }
+
+    public void testSameMarkupAsPaintedAtBuildTime() throws Exception {
+        paint(false);
+        String painted = SourceCodePainterTest.readPainted(output, "pkg/Source.java");
+        paint(true);
+        File raw = new File(output, "pkg/Source.java" + SourceCodePainter.RAW_SOURCE_SUFFIX);
+        assertTrue(raw.exists());
+
+        PaintedSourceView view = PaintedSourceView.render(raw, paint, "same", 1);
+        assertEquals(painted, view.getHtml());
+    }
+
+    public void testPages() throws Exception {
+        paint(true);
+        File raw = new File(output, "pkg/Source.java" + SourceCodePainter.RAW_SOURCE_SUFFIX);
+        PaintedSourceView.PAGE_SIZE = 10;
+
+        PaintedSourceView first = PaintedSourceView.render(raw, paint, "pages", 1);
+        assertTrue(first.getHtml().contains("<a name='10'/>"));
+        assertFalse(first.getHtml().contains("<a name='11'/>"));
+        assertTrue(first.getHtml().contains("coverPart"));
+
+        PaintedSourceView last = PaintedSourceView.render(raw, paint, "pages", 3);
+        assertEquals(3, last.getPage());
+        assertTrue(last.getHtml().contains("<a name='25'/>"));
+        assertFalse(last.getHtml().contains("<a name='20'/>"));
+        assertSame(last, PaintedSourceView.render(raw, paint, "pages", 3));
+        assertEquals("", PaintedSourceView.render(raw, paint, "pages", 4).getHtml());
+    }
+
+    public void testRanges() throws Exception {
+        paint(false);
+        String painted = SourceCodePainterTest.readPainted(output, "pkg/Source.java");
+        paint(true);
+        File raw = new File(output, "pkg/Source.java" + SourceCodePainter.RAW_SOURCE_SUFFIX);
+
+        StringWriter copied = new StringWriter();
+        assertEquals(5, PaintedSourceView.copyRows(new StringReader(painted), copied, 3, 7));
+        StringWriter rendered = new StringWriter();
+        assertEquals(5, PaintedSourceView.renderRows(raw, paint, rendered, 3, 7));
+        assertEquals(copied.toString(), rendered.toString());
+        assertTrue(copied.toString().startsWith("<tr class=\"coverPart\""));
+        assertTrue(copied.toString().contains("<a name='7'/>"));
+        assertFalse(copied.toString().contains("<a name='8'/>"));
+
+        // past the end of the file
+        assertEquals(5, PaintedSourceView.copyRows(new StringReader(painted), new StringWriter(), 21, 100));
+        assertEquals(5, PaintedSourceView.renderRows(raw, paint, new StringWriter(), 21, 100));
+        StringWriter all = new StringWriter();
+        assertEquals(25, PaintedSourceView.copyRows(new StringReader(painted), all, 1, Integer.MAX_VALUE));
+        assertEquals(painted, all.toString());
+    }
+}
@@ -0,0 +1,277 @@
+package hudson.plugins.cobertura.renderers;
+
+import hudson.FilePath;
+import hudson.plugins.cobertura.targets.CoverageElement;
+import hudson.plugins.cobertura.targets.CoveragePaint;
+import hudson.util.StreamTaskListener;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Unit tests for {@link SourceCodePainter}.
+ */
+public class SourceCodePainterTest extends TestCase {
+
+    private static final String PROPERTY = SourceCodePainter.class.getName() + ".threads";
+
+    private File workspace;
+
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception {
+        workspace = File.createTempFile("workspace", "");
+        workspace.delete();
+        output = File.createTempFile("painted", "");
+        output.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.clearProperty(PROPERTY);
+        new FilePath(workspace).deleteRecursive();
+        new FilePath(output).deleteRecursive();
+    }
+
+    private String paint(String threads) throws Exception {
+        Map<String, CoveragePaint> paint = new HashMap<String, CoveragePaint>();
+        for (int i = 0; i < 20; i++) {
+            String path = "pkg/Source" + i + ".java";
+            File source = new File(workspace, path);
+            if (!source.exists()) {
+                new FilePath(source).write("class Source" + i + " {\n  int x = 1 < 2 ? 1 : 0;\n}\n", "UTF-8");
+            }
+            CoveragePaint p = new CoveragePaint(CoverageElement.JAVA_FILE);
+            p.paint(2, i);
+            paint.put(path, p);
+        }
+        // painting this one fails, as its destination is a directory
+        new FilePath(new File(workspace, "pkg/Broken.java")).write("class Broken {}\n", "UTF-8");
+        paint.put("pkg/Broken.java", new CoveragePaint(CoverageElement.JAVA_FILE));
+        new File(output, "pkg/Broken.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX).mkdirs();
+
+        System.setProperty(PROPERTY, threads);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(), paint,
+                new StreamTaskListener(log), SourceEncoding.UTF_8);
+        assertEquals(Boolean.TRUE, painter.invoke(workspace, null));
+        return log.toString("UTF-8");
+    }
+
+    /**
+     * Reads a painted source, which is stored gzipped.
+     */
+    static String readPainted(File output, String path) throws Exception {
+        InputStream in = new GZIPInputStream(new FileInputStream(new File(output, path + SourceCodePainter.PAINTED_SOURCE_SUFFIX)));
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private String readPainted(String path) throws Exception {
+        return readPainted(output, path);
+    }
+
+    private void assertPainted(String log) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            String painted = readPainted("pkg/Source" + i + ".java");
+            assertTrue(painted.contains("1&nbsp;&lt;&nbsp;2"));
+            assertTrue(painted.contains(i == 0 ? "coverNone" : "coverFull"));
+        }
+        assertTrue(log, log.contains("Failure to paint"));
+    }
+
+    public void testSequential() throws Exception {
+        assertPainted(paint("1"));
+    }
+
+    public void testParallel() throws Exception {
+        assertPainted(paint("4"));
+    }
+
+    public void testOnePerProcessorByDefault() throws Exception {
+        assertPainted(paint("0"));
+    }
+
+    public void testUnchangedFilesAreReused() throws Exception {
+        paint("1");
+        FilePath reused = new FilePath(new File(output, "pkg/Source5.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX));
+        reused.write("left alone", "UTF-8");
+        new FilePath(new File(output, "pkg/Source6.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX)).write("painted again", "UTF-8");
+        new FilePath(new File(workspace, "pkg/Source6.java")).write("class Source6 {\n  int x = 1 < 2 ? 1 : 0; // changed\n}\n", "UTF-8");
+        File removed = new File(output, "pkg/Source7.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX);
+        assertTrue(removed.delete());
+
+        String log = paint("4");
+        assertTrue(log, log.contains("Reused 18 of 21"));
+        assertEquals("left alone", reused.readToString());
+        assertTrue(readPainted("pkg/Source6.java").contains("changed"));
+        assertTrue(removed.exists());
+    }
+
+    public void testArchive() throws Exception {
+        Map<String, CoveragePaint> paint = new HashMap<String, CoveragePaint>();
+        for (int i = 0; i < 20; i++) {
+            String path = "pkg/Source" + i + ".java";
+            new FilePath(new File(workspace, path)).write("class Source" + i + " {\n  int x = 1 < 2 ? 1 : 0;\n}\n", "UTF-8");
+            paint.put(path, new CoveragePaint(CoverageElement.JAVA_FILE));
+        }
+        // large enough to wait for the archive on disk
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 512 * 1024) {
+            large.append("  int x = 1 < 2 ? 1 : 0;\n");
+        }
+        new FilePath(new File(workspace, "pkg/Large.java")).write(large.toString(), "UTF-8");
+        paint.put("pkg/Large.java", new CoveragePaint(CoverageElement.JAVA_FILE));
+
+        System.setProperty(PROPERTY, "4");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log);
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(), paint,
+                listener, SourceEncoding.UTF_8);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(Boolean.TRUE, painter.paint(workspace, archive));
+        assertFalse(output.exists());
+
+        List<String> entries = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.add(entry.getName());
+            }
+        } finally {
+            zip.close();
+        }
+        assertEquals(22, entries.size());
+        // the manifest comes last, once all the files it lists are in
+        assertEquals(SourceCodePainter.MANIFEST, entries.get(21));
+        for (String path : paint.keySet()) {
+            assertTrue(path, entries.contains(path + SourceCodePainter.PAINTED_SOURCE_SUFFIX));
+        }
+
+        SourceCodePainter.unpack(new ByteArrayInputStream(archive.toByteArray()), output, listener);
+        assertTrue(readPainted("pkg/Source7.java").contains("1&nbsp;&lt;&nbsp;2"));
+        assertTrue(readPainted("pkg/Large.java").endsWith("</tr>\n"));
+        assertTrue(new File(output, SourceCodePainter.MANIFEST).exists());
+
+        // painting again reuses everything, so only the manifest goes into the archive
+        archive.reset();
+        assertEquals(Boolean.TRUE, new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(), paint,
+                listener, SourceEncoding.UTF_8).paint(workspace, archive));
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("Reused 21 of 21"));
+    }
+
+    public void testUnpackSkipsEntriesOutsideOfTheDestination() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        zip.putNextEntry(new ZipEntry("pkg/A.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX));
+        zip.write("inside".getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("../outside.txt"));
+        zip.write("outside".getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.close();
+
+        File dir = new File(output, "dir");
+        dir.mkdirs();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SourceCodePainter.unpack(new ByteArrayInputStream(archive.toByteArray()), dir, new StreamTaskListener(log));
+        assertEquals("inside", new FilePath(new File(dir, "pkg/A.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX)).readToString());
+        assertFalse(new File(output, "outside.txt").exists());
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("Not unpacking painted source ../outside.txt"));
+    }
+
+    public void testIndexSources() throws Exception {
+        File src = new File(workspace, "src");
+        new FilePath(new File(src, "pkg/A.java")).write("class A {}", "UTF-8");
+        new FilePath(new File(src, "pkg/B.java")).write("class B {}", "UTF-8");
+        new FilePath(new File(workspace, "pkg/B.java")).write("class B {}", "UTF-8");
+
+        Map<String, File> index = SourceCodePainter.indexSources(Arrays.asList(workspace, src),
+                new HashSet<String>(Arrays.asList("pkg/A.java", "pkg/B.java", "pkg/Missing.java")));
+        assertEquals(2, index.size());
+        assertEquals(new File(src, "pkg/A.java"), index.get("pkg/A.java"));
+        // the workspace comes first
+        assertEquals(new File(workspace, "pkg/B.java"), index.get("pkg/B.java"));
+    }
+
+    public void testIndexSourcesWithRelativeSegments() throws Exception {
+        File src = new File(workspace, "src");
+        new FilePath(new File(src, "pkg/A.java")).write("class A {}", "UTF-8");
+        new FilePath(new File(workspace, "lib/C.java")).write("class C {}", "UTF-8");
+        Map<String, File> index = SourceCodePainter.indexSources(Arrays.asList(src),
+                new HashSet<String>(Arrays.asList("./pkg//A.java", "other/../pkg/A.java", "../lib/C.java", "../lib/D.java")));
+        assertEquals(3, index.size());
+        assertEquals(new File(src, "pkg/A.java"), index.get("./pkg//A.java"));
+        assertEquals(new File(src, "pkg/A.java"), index.get("other/../pkg/A.java"));
+        // out of the source directory, so only found by looking it up there
+        assertEquals(new File(src, "../lib/C.java"), index.get("../lib/C.java"));
+
+        assertEquals("pkg/A.java", SourceCodePainter.normalize("./pkg//A.java"));
+        assertNull(SourceCodePainter.normalize("../lib/C.java"));
+    }
+
+    public void testUnresolvedSourcesAreReported() throws Exception {
+        Map<String, CoveragePaint> paint = new HashMap<String, CoveragePaint>();
+        paint.put("pkg/Missing.java", new CoveragePaint(CoverageElement.JAVA_FILE));
+        workspace.mkdirs();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(), paint,
+                new StreamTaskListener(log), SourceEncoding.UTF_8);
+        assertEquals(Boolean.TRUE, painter.invoke(workspace, null));
+        String text = log.toString("UTF-8");
+        assertTrue(text, text.contains("Could not find 1 of 1 source files"));
+        assertTrue(text, text.contains("pkg/Missing.java"));
+    }
+
+    public void testLimitsAndExcludes() throws Exception {
+        Map<String, CoveragePaint> paint = new HashMap<String, CoveragePaint>();
+        for (String path : new String[] {"pkg/A.java", "pkg/B.java", "pkg/Huge.java", "gen/Parser.java"}) {
+            new FilePath(new File(workspace, path)).write("class X {\n  int x;\n  int y;\n  int z;\n}\n", "UTF-8");
+            CoveragePaint p = new CoveragePaint(CoverageElement.JAVA_FILE);
+            p.paint(2, 0);
+            p.paint(3, 0);
+            p.paint(4, 1);
+            paint.put(path, p);
+        }
+        new FilePath(new File(workspace, "pkg/Huge.java")).write("class Huge {\n  int x;\n  int y;\n}\n" + new String(new char[500]).replace('\0', ' '), "UTF-8");
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SourceCodePainter painter = new SourceCodePainter(new FilePath(output), Collections.<String>emptySet(), paint,
+                new StreamTaskListener(log), SourceEncoding.UTF_8);
+        painter.setExcludes("gen/**, **/Nothing.java");
+        // A fits, B does not fit in what is left, Huge is too large on its own
+        painter.setSizeLimits(200, 60);
+        assertEquals(Boolean.TRUE, painter.invoke(workspace, null));
+
+        String text = log.toString("UTF-8");
+        assertTrue(text, text.contains("Not painting 3 source files"));
+        assertTrue(text, text.contains("1 excluded by pattern, 2 over the size limits"));
+        assertTrue(readPainted("pkg/A.java").contains("coverNone"));
+        String summary = readPainted("pkg/Huge.java");
+        assertTrue(summary, summary.contains("Lines never executed: 2-3."));
+        assertTrue(readPainted("pkg/B.java").contains("was not painted"));
+        assertFalse(new File(output, "gen/Parser.java" + SourceCodePainter.PAINTED_SOURCE_SUFFIX).exists());
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.cobertura.renderers;
+
+import hudson.plugins.cobertura.targets.CoverageElement;
+import hudson.plugins.cobertura.targets.CoveragePaint;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Unit tests for {@link SourceLineRenderer}, against the way lines were painted before it.
+ */
+public class SourceLineRendererTest extends TestCase {
+
+    private static final String[] LINES = {
+            "",
+            "package foo;",
+            "\tif (a < b && c > d) {",
+            "        return \"<tr>\" + x; // &amp; stays escaped\r",
+            "\t \t mixed\ttabs  and  spaces ",
+            "\u00e9t\u00e9 \u4e2d\u6587",
+    };
+
+    private CoveragePaint paint;
+
+    @Override
+    protected void setUp() throws Exception {
+        paint = new CoveragePaint(CoverageElement.JAVA_FILE);
+        paint.paint(2, 0);
+        paint.paint(3, 5);
+        paint.paint(4, 7, 1, 4);
+        paint.paint(5, 2, 2, 2);
+        paint.paint(1234567, 1, 1, 3);
+    }
+
+    public void testSameMarkupAsBefore() throws Exception {
+        StringWriter expected = new StringWriter();
+        StringWriter actual = new StringWriter();
+        SourceLineRenderer renderer = new SourceLineRenderer(actual, paint);
+        for (int line = 1; line <= LINES.length; line++) {
+            legacyRender(expected, line, LINES[line - 1], paint);
+            renderer.render(line, LINES[line - 1]);
+        }
+        legacyRender(expected, 1234567, "big", paint);
+        renderer.render(1234567, "big");
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    /**
+     * Compares the bytes allocated per line with the way lines were painted before. Skipped on JVMs that cannot
+     * measure the allocations of a thread.
+     */
+    public void testAllocationsPerLine() throws Exception {
+        final Writer sink = new NullWriter();
+        final SourceLineRenderer renderer = new SourceLineRenderer(sink, paint);
+        Line legacy = new Line() {
+            public void render(int line, String content) throws IOException {
+                legacyRender(sink, line, content, paint);
+            }
+        };
+        Line current = new Line() {
+            public void render(int line, String content) throws IOException {
+                renderer.render(line, content);
+            }
+        };
+        long legacyBytes = allocatedPerLine(legacy);
+        long currentBytes = allocatedPerLine(current);
+        if (legacyBytes < 0 || currentBytes < 0) {
+            return;
+        }
+        System.out.println("Bytes allocated per painted line: " + legacyBytes + " before, " + currentBytes + " now");
+        assertTrue(currentBytes + " < " + legacyBytes, currentBytes < legacyBytes);
+    }
+
+    private interface Line {
+        void render(int line, String content) throws IOException;
+    }
+
+    private static long allocatedPerLine(Line renderer) throws Exception {
+        int rounds = 20000;
+        for (int i = 0; i < rounds; i++) {
+            renderer.render(1 + i % LINES.length, LINES[i % LINES.length]);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < rounds; i++) {
+            renderer.render(1 + i % LINES.length, LINES[i % LINES.length]);
+        }
+        long after = allocatedBytes();
+        return before < 0 || after < 0 ? -1 : (after - before) / rounds;
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread so far, through the HotSpot extension of {@link ThreadMXBean}.
+     *
+     * @return the bytes, or -1 if they cannot be measured
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static final class NullWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void write(String str, int offset, int length) {
+        }
+
+        @Override
+        public void write(int c) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * How lines were painted before {@link SourceLineRenderer}.
+     */
+    private static void legacyRender(Writer output, int line, String content, CoveragePaint paint) throws IOException {
+        if (paint.isPainted(line)) {
+            final int hits = paint.getHits(line);
+            final int branchCoverage = paint.getBranchCoverage(line);
+            final int branchTotal = paint.getBranchTotal(line);
+            final int coveragePercent = (hits == 0) ? 0 : (int) (branchCoverage * 100.0 / branchTotal);
+            if (paint.getHits(line) > 0) {
+                if (branchTotal == branchCoverage) {
+                    output.write("<tr class=\"coverFull\">\n");
+                } else {
+                    output.write("<tr class=\"coverPart\" title=\"Line " + line + ": Conditional coverage " + coveragePercent + "% ("
+                            + branchCoverage + "/" + branchTotal + ")\">\n");
+                }
+            } else {
+                output.write("<tr class=\"coverNone\">\n");
+            }
+            output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
+            output.write("<td class=\"hits\">" + hits + "</td>\n");
+        } else {
+            output.write("<tr class=\"noCover\">\n");
+            output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
+            output.write("<td class=\"hits\"/>\n");
+        }
+        output.write("<td class=\"code\">"
+                + content.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\n", "").replace("\r", "").replace(" ",
+                "&nbsp;").replace("\t", "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;") + "</td>\n");
+        output.write("</tr>\n");
+    }
+}
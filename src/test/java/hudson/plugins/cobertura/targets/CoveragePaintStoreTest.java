@@ -0,0 +1,65 @@
+package hudson.plugins.cobertura.targets;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.CoberturaCoverageParser;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link CoveragePaintStore}.
+ */
+public class CoveragePaintStoreTest extends TestCase {
+
+    private CoverageResult load() throws Exception {
+        CoverageResult result = CoberturaCoverageParser.parse(
+                getClass().getResourceAsStream("/hudson/plugins/cobertura/coverage-with-data.xml"), null);
+        result.setOwner((Run<?, ?>) null);
+        return result;
+    }
+
+    public void testAttach() throws Exception {
+        CoverageResult expected = load();
+        File file = File.createTempFile("paint", ".dat");
+        try {
+            CoveragePaintStore.write(expected, file);
+            CoverageResult actual = load();
+            CoveragePaintStore.attach(actual, file);
+
+            CoveragePaint expectedPaint = expected.getChild("search").getChild("LinearSearch.java").getPaint();
+            CoveragePaint actualPaint = actual.getChild("search").getChild("LinearSearch.java").getPaint();
+            assertEquals(expectedPaint.getResults(), actualPaint.getResults());
+            for (int line = 0; line < 100; line++) {
+                assertEquals(expectedPaint.isPainted(line), actualPaint.isPainted(line));
+                assertEquals(expectedPaint.getHits(line), actualPaint.getHits(line));
+                assertEquals(expectedPaint.getBranchCoverage(line), actualPaint.getBranchCoverage(line));
+                assertEquals(expectedPaint.getBranchTotal(line), actualPaint.getBranchTotal(line));
+                int[] expectedLine = new int[3];
+                int[] actualLine = new int[3];
+                assertEquals(expectedPaint.isPainted(line), expectedPaint.getLine(line, expectedLine));
+                assertEquals(actualPaint.isPainted(line), actualPaint.getLine(line, actualLine));
+                assertTrue(Arrays.equals(expectedLine, actualLine));
+            }
+            assertEquals(expected.getResults(), actual.getResults());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPaintAfterAttach() throws Exception {
+        CoverageResult result = load();
+        File file = File.createTempFile("paint", ".dat");
+        try {
+            CoveragePaintStore.write(result, file);
+            CoveragePaintStore.attach(result, file);
+
+            CoveragePaint paint = result.getChild("search").getChild("LinearSearch.java").getPaint();
+            int hits = paint.getHits(10);
+            paint.paint(10, 1);
+            assertEquals(hits + 1, paint.getHits(10));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
 /**
  * Created by IntelliJ IDEA.
@@ -29,6 +30,19 @@ public class CoveragePaintTest extends TestCase {
         assertEquals(179, instance.getTotalLines());
     }
 
+    public void testUncoveredRanges() {
+        CoveragePaint instance = new CoveragePaint(CoverageElement.JAVA_FILE);
+        instance.paint(3, 0);
+        instance.paint(4, 0);
+        instance.paint(7, 0);
+        instance.paint(8, 2);
+        instance.paint(10, 0);
+        instance.paint(12, 1, 1, 2);
+        instance.paint(20, 0, 0, 2);
+        assertTrue(Arrays.equals(new int[] {3, 7, 10, 10, 20, 20}, instance.getUncoveredRanges()));
+        assertEquals(0, new CoveragePaint(CoverageElement.JAVA_FILE).getUncoveredRanges().length);
+    }
+
     public void testSerializable() throws Exception {
         CoveragePaint instance = new CoveragePaint(CoverageElement.JAVA_FILE);
         instance.paint(5, 7, 4, 5);
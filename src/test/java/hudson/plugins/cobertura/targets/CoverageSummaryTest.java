@@ -0,0 +1,77 @@
+package hudson.plugins.cobertura.targets;
+
+import hudson.model.Run;
+import hudson.plugins.cobertura.CoberturaCoverageParser;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link CoverageSummary}.
+ */
+public class CoverageSummaryTest extends TestCase {
+
+    private CoverageResult load() throws Exception {
+        CoverageResult result = CoberturaCoverageParser.parse(
+                getClass().getResourceAsStream("/hudson/plugins/cobertura/coverage-with-data.xml"), null);
+        result.setOwner((Run<?, ?>) null);
+        return result;
+    }
+
+    public void testRoundTrip() throws Exception {
+        CoverageResult result = load();
+        File file = File.createTempFile("summary", ".dat");
+        try {
+            CoverageSummary.write(result, file);
+            CoverageSummary summary = CoverageSummary.read(file);
+
+            assertEquals(result.getResults(), summary.getResults(summary.find(result)));
+            CoverageResult method = result.getChild("search").getChild("LinearSearch.java")
+                    .getChild("LinearSearch").getChild("int find(int,int)");
+            int node = summary.find(method);
+            assertTrue(node > 0);
+            assertEquals(CoverageElement.JAVA_METHOD, summary.getElement(node));
+            assertEquals(method.getResults(), summary.getResults(node));
+            assertEquals(method.getCoverage(CoverageMetric.LINE), summary.getCoverage(node, CoverageMetric.LINE));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testFindInOtherTree() throws Exception {
+        CoverageResult result = load();
+        File file = File.createTempFile("summary", ".dat");
+        try {
+            CoverageSummary.write(result, file);
+            CoverageSummary summary = CoverageSummary.read(file);
+
+            CoverageResult other = load();
+            assertEquals(-1, summary.find(new CoverageResult(CoverageElement.JAVA_PACKAGE, other, "missing")));
+            assertEquals(result.getChild("search").getResults(), summary.getResults(summary.find(other.getChild("search"))));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testChildren() throws Exception {
+        CoverageResult result = load();
+        File file = File.createTempFile("summary", ".dat");
+        try {
+            CoverageSummary.write(result, file);
+            CoverageSummary summary = CoverageSummary.read(file);
+
+            int root = summary.find(result);
+            assertEquals(-1, summary.getParent(root));
+            int[] packages = summary.getChildren(root);
+            assertEquals(result.getChildren().size(), packages.length);
+            int search = summary.find(result.getChild("search"));
+            assertTrue(Arrays.binarySearch(packages, search) >= 0);
+            assertEquals("search", summary.getName(search));
+            assertEquals(root, summary.getParent(search));
+            assertEquals(result.getChild("search").getChildren().size(), summary.getChildren(search).length);
+        } finally {
+            file.delete();
+        }
+    }
+}